@@ -0,0 +1,64 @@
+package de.teamalbin.spigotmc.easyportals.benchmarks;
+
+import de.teamalbin.spigotmc.easyportals.FrameDetector;
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Portal detection: the flood fill that finds a portal's blocks, and the search for a build
+ * site around a player (scan order plus flood fills) that /portal create runs. Block types come
+ * straight from the memory world, without going through Block objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDetectorBenchmark {
+    private static final int PLANE = 0;
+    private static final int BUILD_SITE_DISTANCE = 5;
+
+    @Param({"2x3", "6x8", "20x24"})
+    public String size;
+
+    private MemoryWorld world;
+    private FrameDetector detector;
+    private int startX;
+    private int startY;
+
+    @Setup
+    public void setUp() {
+        String[] wh = size.split("x");
+        int width = Integer.parseInt(wh[0]);
+        int height = Integer.parseInt(wh[1]);
+        world = new MemoryWorld("frames");
+        PortalGrid.buildFrame(world, 0, MemoryWorld.GROUND + 1, PLANE, width, height, true);
+        detector = new FrameDetector(Material.EMERALD_BLOCK, Material.PORTAL, PortalGrid.MAX_PORTAL_SIZE);
+        startX = width / 2;
+        startY = MemoryWorld.GROUND + 1;
+    }
+
+    @Benchmark
+    public FrameDetector.Site findPortalBlocks() {
+        return detector.findPortalBlocks(world, startX, startY, PLANE, true);
+    }
+
+    @Benchmark
+    public FrameDetector.Result detectNear() {
+        // a player standing two blocks in front of the build markers
+        return detector.detectNear(world, startX, startY, PLANE + 2, BUILD_SITE_DISTANCE);
+    }
+}
@@ -0,0 +1,168 @@
+package de.teamalbin.spigotmc.easyportals.benchmarks;
+
+import de.teamalbin.spigotmc.easyportals.FrameDetector;
+import de.teamalbin.spigotmc.easyportals.Utilities;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * An in-memory world: stone up to GROUND, air above, and whatever was set on top of that.
+ * Its World and Block views are proxies that only answer what the plugin asks for.
+ */
+@SuppressWarnings("deprecation")
+public class MemoryWorld implements FrameDetector.BlockTypes {
+    public static final int GROUND = 64;
+    private static final int MAX_HEIGHT = 256;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final String name;
+    private final UUID uid = UUID.randomUUID();
+    private final World world;
+
+    // blocks that differ from the default terrain, open addressing with linear probing
+    private long[] keys = new long[1024];
+    private byte[] types = new byte[1024];
+    private int size = 0;
+
+    public MemoryWorld(String name) {
+        this.name = name;
+        Arrays.fill(keys, EMPTY);
+        this.world = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[]{World.class}, this::world);
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    @Override
+    public int typeAt(int x, int y, int z) {
+        if (y < 0 || y >= MAX_HEIGHT) return UNKNOWN;
+        int slot = slot(Utilities.packBlock(x, y, z));
+        if (keys[slot] != EMPTY) return types[slot] & 0xFF;
+        return y < GROUND ? Material.STONE.getId() : Material.AIR.getId();
+    }
+
+    public void set(int x, int y, int z, Material type) {
+        long key = Utilities.packBlock(x, y, z);
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        types[slot] = (byte) type.getId();
+    }
+
+    public Block blockAt(int x, int y, int z) {
+        return (Block) Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[]{Block.class}, new BlockView(x, y, z));
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        byte[] oldTypes = types;
+        keys = new long[oldKeys.length * 2];
+        types = new byte[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = slot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            types[slot] = oldTypes[i];
+        }
+    }
+
+    private int highestBlockYAt(int x, int z) {
+        for (int y = MAX_HEIGHT - 1; y >= GROUND; y--) {
+            if (typeAt(x, y, z) != Material.AIR.getId()) return y + 1;
+        }
+        return GROUND;
+    }
+
+    private Object world(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getName": return name;
+            case "getUID": return uid;
+            case "getMaxHeight": return MAX_HEIGHT;
+            case "getBlockAt":
+                if (args.length == 1) {
+                    Location loc = (Location) args[0];
+                    return blockAt(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+                }
+                return blockAt((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+            case "getHighestBlockYAt":
+                if (args.length == 1) return highestBlockYAt(((Location) args[0]).getBlockX(), ((Location) args[0]).getBlockZ());
+                return highestBlockYAt((Integer) args[0], (Integer) args[1]);
+            case "isChunkLoaded": return true;
+            case "equals": return proxy == args[0];
+            case "hashCode": return System.identityHashCode(proxy);
+            case "toString": return "MemoryWorld{" + name + "}";
+        }
+        return Stand.defaultValue(method);
+    }
+
+    private class BlockView implements InvocationHandler {
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private BlockView(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getX": return x;
+                case "getY": return y;
+                case "getZ": return z;
+                case "getWorld": return world;
+                case "getType": return Material.getMaterial(typeAt(x, y, z));
+                case "getTypeId": return typeAt(x, y, z);
+                case "getData": return (byte) 0;
+                case "getLocation": return new Location(world, x, y, z);
+                case "getRelative":
+                    if (args.length == 1) {
+                        BlockFace face = (BlockFace) args[0];
+                        return blockAt(x + face.getModX(), y + face.getModY(), z + face.getModZ());
+                    }
+                    if (args.length == 2) {
+                        BlockFace face = (BlockFace) args[0];
+                        int distance = (Integer) args[1];
+                        return blockAt(x + face.getModX() * distance, y + face.getModY() * distance, z + face.getModZ() * distance);
+                    }
+                    return blockAt(x + (Integer) args[0], y + (Integer) args[1], z + (Integer) args[2]);
+                case "setType":
+                    set(x, y, z, (Material) args[0]);
+                    return null;
+                case "equals":
+                    if (!(args[0] instanceof Block)) return false;
+                    Block other = (Block) args[0];
+                    return other.getWorld() == world && other.getX() == x && other.getY() == y && other.getZ() == z;
+                case "hashCode": return (y << 24) ^ (x << 12) ^ z;
+                case "toString": return "Block{" + x + "," + y + "," + z + "}";
+            }
+            return Stand.defaultValue(method);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package de.teamalbin.spigotmc.easyportals.benchmarks;
+
+import de.teamalbin.spigotmc.easyportals.PortalManager;
+import de.teamalbin.spigotmc.easyportals.storage.StoredPortal;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * A memory world with portals in a square grid, loaded into a portal manager the same way
+ * the plugin loads them on startup. Portals run east-west, with their frame plane on a chunk
+ * border, so the chunks in between have no portal blocks at all.
+ */
+public class PortalGrid {
+    // allow gateway-sized portals
+    public static final int MAX_PORTAL_SIZE = 32;
+
+    public final MemoryWorld world = new MemoryWorld("bench");
+    public final PortalManager manager;
+    public final int width;
+    public final int height;
+    public final int spacing;
+    public final int side;
+    private final int count;
+
+    /**
+     * @param count How many portals.
+     * @param size Inside of each portal, as "<width>x<height>".
+     * @param targets Serialized target of the portal with the given number, or null for unlinked.
+     */
+    public PortalGrid(int count, String size, IntFunction<String> targets) throws Exception {
+        String[] wh = size.split("x");
+        this.count = count;
+        this.width = Integer.parseInt(wh[0]);
+        this.height = Integer.parseInt(wh[1]);
+        // multiple of 16, and at least three chunks, so there's a portal-free chunk between rows
+        this.spacing = Math.max(48, (width + 16 + 15) / 16 * 16);
+        this.side = (int) Math.ceil(Math.sqrt(count));
+        Stand.register(world.getWorld());
+        Stand.MemoryStorage storage = new Stand.MemoryStorage();
+        for (int i = 0; i < count; i++) {
+            int x0 = originX(i);
+            int z = planeZ(i);
+            buildFrame(world, x0, MemoryWorld.GROUND + 1, z, width, height, false);
+            storage.save(new StoredPortal("p" + i, world.getWorld().getName(), x0 + width / 2, MemoryWorld.GROUND + 1, z,
+                    true, false, targets.apply(i), null, 0));
+        }
+        this.manager = new PortalManager(Stand.plugin(), new Stand.MemoryNMS(world), storage, false, MAX_PORTAL_SIZE);
+        this.manager.loadConfig();
+    }
+
+    /**
+     * Builds an obsidian frame around an empty inside whose bottom left block is at x0, y0, z.
+     * With markers, the bottom row of the inside is made of build markers.
+     */
+    public static void buildFrame(MemoryWorld world, int x0, int y0, int z, int width, int height, boolean markers) {
+        for (int x = x0 - 1; x <= x0 + width; x++) {
+            for (int y = y0 - 1; y <= y0 + height; y++) {
+                boolean inside = x >= x0 && x < x0 + width && y >= y0 && y < y0 + height;
+                if (!inside) world.set(x, y, z, Material.OBSIDIAN);
+                else if (markers && y == y0) world.set(x, y, z, Material.EMERALD_BLOCK);
+                else world.set(x, y, z, Material.AIR);
+            }
+        }
+    }
+
+    public int originX(int portal) {
+        return (portal % side) * spacing;
+    }
+
+    public int planeZ(int portal) {
+        return (portal / side) * spacing;
+    }
+
+    /**
+     * A block inside the portal with the given number.
+     */
+    public Block portalBlock(int portal, Random random) {
+        return world.blockAt(originX(portal) + random.nextInt(width), MemoryWorld.GROUND + 1 + random.nextInt(height), planeZ(portal));
+    }
+
+    /**
+     * A block in the same chunks as a portal, but not part of it.
+     */
+    public Block nearBlock(int portal, Random random) {
+        return world.blockAt(originX(portal) - 1 + random.nextInt(width + 2), MemoryWorld.GROUND + random.nextInt(height + 2),
+                planeZ(portal) + 1 + random.nextInt(3));
+    }
+
+    /**
+     * A block in a chunk without portal blocks.
+     */
+    public Block farBlock(Random random) {
+        int portal = random.nextInt(count);
+        return world.blockAt(originX(portal) + random.nextInt(spacing), MemoryWorld.GROUND + random.nextInt(8), planeZ(portal) + 24);
+    }
+
+    /**
+     * Probe blocks for an event mix: "idle" is what a server mostly sees (almost all events far
+     * away from portals), "busy" has many events around portals, "portal" only hits portal blocks.
+     */
+    public Block[] probes(String mix, int n, long seed) {
+        double far;
+        double near;
+        switch (mix) {
+            case "idle": far = 0.95; near = 0.04; break;
+            case "busy": far = 0.5; near = 0.3; break;
+            case "portal": far = 0; near = 0; break;
+            default: throw new IllegalArgumentException("Unknown event mix " + mix);
+        }
+        Random random = new Random(seed);
+        Block[] probes = new Block[n];
+        for (int i = 0; i < n; i++) {
+            double r = random.nextDouble();
+            if (r < far) probes[i] = farBlock(random);
+            else if (r < far + near) probes[i] = nearBlock(random.nextInt(count), random);
+            else probes[i] = portalBlock(random.nextInt(count), random);
+        }
+        return probes;
+    }
+}
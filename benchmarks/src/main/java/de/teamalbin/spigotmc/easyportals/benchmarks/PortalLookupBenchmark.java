@@ -0,0 +1,84 @@
+package de.teamalbin.spigotmc.easyportals.benchmarks;
+
+import de.teamalbin.spigotmc.easyportals.Portal;
+import de.teamalbin.spigotmc.easyportals.PortalManager;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lookups behind the block event handlers: which portal a block belongs to, and whether
+ * physics, spawns, breaking and placing have to be stopped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortalLookupBenchmark {
+    // a power of two, so the next probe is found with a mask
+    private static final int PROBES = 4096;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int portals;
+
+    @Param({"2x3", "6x8", "20x24"})
+    public String size;
+
+    @Param({"idle", "busy", "portal"})
+    public String mix;
+
+    private PortalManager manager;
+    private Block[] probes;
+    private BlockPhysicsEvent[] physics;
+    private int next = 0;
+
+    @Setup
+    @SuppressWarnings("deprecation")
+    public void setUp() throws Exception {
+        PortalGrid grid = new PortalGrid(portals, size, i -> null);
+        manager = grid.manager;
+        probes = grid.probes(mix, PROBES, 42);
+        physics = new BlockPhysicsEvent[PROBES];
+        for (int i = 0; i < PROBES; i++) physics[i] = new BlockPhysicsEvent(probes[i], Material.AIR.getId());
+    }
+
+    private int nextProbe() {
+        next = (next + 1) & (PROBES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Portal findPortalFor() {
+        return manager.findPortalFor(probes[nextProbe()]);
+    }
+
+    @Benchmark
+    public boolean managesBlock() {
+        return manager.manages(probes[nextProbe()]);
+    }
+
+    @Benchmark
+    public boolean managesPhysics() {
+        return manager.manages(physics[nextProbe()]);
+    }
+
+    @Benchmark
+    public boolean managesAround() {
+        return manager.managesAround(probes[nextProbe()]);
+    }
+}
@@ -0,0 +1,158 @@
+package de.teamalbin.spigotmc.easyportals.benchmarks;
+
+import de.teamalbin.spigotmc.easyportals.Utilities;
+import de.teamalbin.spigotmc.easyportals.nms.NMSInterface;
+import de.teamalbin.spigotmc.easyportals.storage.PortalStorage;
+import de.teamalbin.spigotmc.easyportals.storage.StoredPortal;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * In-memory stand-ins for the parts of the server the plugin talks to.
+ */
+public final class Stand {
+    private static final Logger LOGGER = Logger.getLogger("EasyPortals");
+    private static final HashMap<String, World> worlds = new HashMap<>();
+
+    private Stand() {
+    }
+
+    /**
+     * Returns what a proxy answers for methods it doesn't care about.
+     */
+    static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == float.class) return 0f;
+        return 0d;
+    }
+
+    /**
+     * Makes the world known to Bukkit.getWorld, installing a stand-in server on first use.
+     */
+    public static void register(World world) {
+        worlds.put(world.getName(), world);
+        if (Bukkit.getServer() != null) return;
+        Bukkit.setServer((Server) Proxy.newProxyInstance(Server.class.getClassLoader(), new Class<?>[]{Server.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getWorld": return args[0] instanceof String ? worlds.get(args[0]) : null;
+                        case "getLogger": return LOGGER;
+                        case "getName": return "MemoryServer";
+                        case "getVersion":
+                        case "getBukkitVersion": return "benchmark";
+                        case "isPrimaryThread": return true;
+                    }
+                    return defaultValue(method);
+                }));
+    }
+
+    public static Plugin plugin() {
+        return (Plugin) Proxy.newProxyInstance(Plugin.class.getClassLoader(), new Class<?>[]{Plugin.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getLogger": return LOGGER;
+                        case "getName": return "EasyPortals";
+                        case "isEnabled": return true;
+                    }
+                    return defaultValue(method);
+                });
+    }
+
+    /**
+     * A player standing at the location. Teleports move them; messages are dropped.
+     */
+    public static Player player(Location at) {
+        UUID id = UUID.randomUUID();
+        Location[] location = {at.clone()};
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUniqueId": return id;
+                        case "getName": return "player-" + id;
+                        case "getWorld": return location[0].getWorld();
+                        case "getLocation": return location[0].clone();
+                        case "teleport":
+                            if (args[0] instanceof Location) {
+                                // keep facing the same way, so the next teleport takes the same exit
+                                Location to = ((Location) args[0]).clone();
+                                to.setYaw(at.getYaw());
+                                to.setPitch(at.getPitch());
+                                location[0] = to;
+                                return true;
+                            }
+                            return false;
+                        case "equals": return proxy == args[0];
+                        case "hashCode": return id.hashCode();
+                    }
+                    return defaultValue(method);
+                });
+    }
+
+    /**
+     * Block writes go straight into the memory world; chunks are always loaded.
+     */
+    public static class MemoryNMS implements NMSInterface {
+        private final MemoryWorld world;
+
+        public MemoryNMS(MemoryWorld world) {
+            this.world = world;
+        }
+
+        @Override
+        public void setBlockTypes(World w, long[] blocks, byte data, Material blockType) {
+            for (long packed : blocks) world.set(Utilities.unpackX(packed), Utilities.unpackY(packed), Utilities.unpackZ(packed), blockType);
+        }
+
+        @Override
+        public void loadChunkAsync(World w, int chunkX, int chunkZ, Runnable callback) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Keeps portals in a map instead of writing them anywhere.
+     */
+    public static class MemoryStorage implements PortalStorage {
+        private final LinkedHashMap<String, StoredPortal> portals = new LinkedHashMap<>();
+
+        @Override
+        public List<StoredPortal> loadAll() {
+            return new ArrayList<>(portals.values());
+        }
+
+        @Override
+        public void save(StoredPortal portal) {
+            portals.put(portal.getName(), portal);
+        }
+
+        @Override
+        public void delete(String name) {
+            portals.remove(name);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
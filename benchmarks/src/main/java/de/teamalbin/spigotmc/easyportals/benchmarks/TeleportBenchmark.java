@@ -0,0 +1,69 @@
+package de.teamalbin.spigotmc.easyportals.benchmarks;
+
+import de.teamalbin.spigotmc.easyportals.ExpiringTracker;
+import de.teamalbin.spigotmc.easyportals.Portal;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Portal.teleport for each kind of target. Players take turns, and the cooldowns advance one
+ * tick per teleport, so every player's cooldown is over by the time it's their turn again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TeleportBenchmark {
+    // more than Portal.COOLDOWN_TICKS, and a power of two
+    private static final int PLAYERS = 128;
+
+    @Param({"linked", "point", "random"})
+    public String target;
+
+    private Portal portal;
+    private Player[] players;
+    private ExpiringTracker cooldowns;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        String serialized;
+        switch (target) {
+            case "linked": serialized = "portal:p1"; break;
+            case "point": serialized = "point:100, 70, 100:0:0"; break;
+            case "random": serialized = "random"; break;
+            default: throw new IllegalArgumentException("Unknown target " + target);
+        }
+        PortalGrid grid = new PortalGrid(2, "2x3", i -> i == 0 ? serialized : "portal:p0");
+        portal = grid.manager.findPortalFor(grid.portalBlock(0, new Random(1)));
+        Location front = new Location(grid.world.getWorld(), grid.originX(0), MemoryWorld.GROUND + 1, grid.planeZ(0) - 1);
+        // facing south, through the portal
+        front.setYaw(0);
+        players = new Player[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) players[i] = Stand.player(front);
+        cooldowns = new ExpiringTracker(Portal.COOLDOWN_TICKS);
+    }
+
+    @Benchmark
+    public void teleport() {
+        next = (next + 1) & (PLAYERS - 1);
+        cooldowns.tick();
+        portal.teleport(players[next], cooldowns);
+    }
+}
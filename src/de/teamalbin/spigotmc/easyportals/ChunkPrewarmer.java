@@ -0,0 +1,116 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import de.teamalbin.spigotmc.easyportals.nms.NMSInterface;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Loads the destination chunks of portals that players are walking up to, before they step in,
+ * so the teleport doesn't have to load them synchronously. The chunks are held (kept from unloading)
+ * while a player stays close and for a short while after.
+ */
+public class ChunkPrewarmer {
+    private PortalManager portals;
+    private NMSInterface nms;
+    private int radius;
+    private int maxChunks;
+    private long holdTicks;
+
+    // chunk key -> tick at which the hold ends
+    private HashMap<World, HashMap<Long, Long>> holds = new HashMap<>();
+    private int holdCount = 0;
+    private long currentTick = 0;
+    private ArrayList<Portal> near = new ArrayList<>();
+
+    /**
+     * @param radius How close players have to come to a portal.
+     * @param maxChunks How many chunks may be held at the same time.
+     * @param holdTicks How long a chunk is held after the last player left the portal.
+     */
+    public ChunkPrewarmer(PortalManager portals, NMSInterface nms, int radius, int maxChunks, long holdTicks) {
+        this.portals = portals;
+        this.nms = nms;
+        this.radius = radius;
+        this.maxChunks = maxChunks;
+        this.holdTicks = holdTicks;
+    }
+
+    /**
+     * Looks for players near portals and holds their destinations. Called every interval ticks.
+     */
+    public void scan(long interval) {
+        currentTick += interval;
+        release();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            near.clear();
+            portals.portalsNear(player.getLocation(), radius, near);
+            for (Portal p : near) {
+                if (p.isLinked()) {
+                    // players come out of one of the exits, which may be in a neighbouring chunk
+                    Location center = p.getLink().getLocation();
+                    World world = center.getWorld();
+                    int x = center.getBlockX();
+                    int z = center.getBlockZ();
+                    hold(world, x, z);
+                    hold(world, x - Portal.EXIT_DISTANCE, z);
+                    hold(world, x + Portal.EXIT_DISTANCE, z);
+                    hold(world, x, z - Portal.EXIT_DISTANCE);
+                    hold(world, x, z + Portal.EXIT_DISTANCE);
+                } else if (p.getTarget() instanceof PortalTarget.Point) {
+                    // random warps have their own pool
+                    Location point = ((PortalTarget.Point) p.getTarget()).getLocation();
+                    hold(point.getWorld(), point.getBlockX(), point.getBlockZ());
+                }
+            }
+        }
+    }
+
+    // holds the chunk that contains the block at x, z
+    private void hold(World world, int x, int z) {
+        int cx = x >> 4;
+        int cz = z >> 4;
+        HashMap<Long, Long> inWorld = holds.computeIfAbsent(world, k -> new HashMap<>());
+        long key = PortalIndex.chunkKey(cx, cz);
+        if (inWorld.containsKey(key)) {
+            inWorld.put(key, currentTick + holdTicks);
+            return;
+        }
+        if (holdCount >= maxChunks) return;
+        inWorld.put(key, currentTick + holdTicks);
+        holdCount++;
+        nms.loadChunkAsync(world, cx, cz, () -> { });
+    }
+
+    // lets go of expired holds; the server unloads the chunks once no one needs them
+    private void release() {
+        for (Map.Entry<World, HashMap<Long, Long>> inWorld : holds.entrySet()) {
+            Iterator<Map.Entry<Long, Long>> it = inWorld.getValue().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Long> hold = it.next();
+                if (hold.getValue() > currentTick) continue;
+                it.remove();
+                holdCount--;
+                long key = hold.getKey();
+                int cx = (int) (key >> 32);
+                int cz = (int) key;
+                if (inWorld.getKey().isChunkLoaded(cx, cz)) inWorld.getKey().unloadChunkRequest(cx, cz);
+            }
+        }
+    }
+
+    /**
+     * Whether the chunk is held and must not be unloaded.
+     */
+    public boolean isHeld(Chunk chunk) {
+        HashMap<Long, Long> inWorld = holds.get(chunk.getWorld());
+        return inWorld != null && inWorld.containsKey(PortalIndex.chunkKey(chunk.getX(), chunk.getZ()));
+    }
+}
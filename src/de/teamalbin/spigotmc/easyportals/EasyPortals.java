@@ -2,6 +2,11 @@ package de.teamalbin.spigotmc.easyportals;
 
 import de.teamalbin.spigotmc.easyportals.nms.NMSInterface;
 import de.teamalbin.spigotmc.easyportals.nms.NMSInterface_1_12;
+import de.teamalbin.spigotmc.easyportals.nms.NMSInterface_Bukkit;
+import de.teamalbin.spigotmc.easyportals.storage.ConfigPersister;
+import de.teamalbin.spigotmc.easyportals.storage.PortalStorage;
+import de.teamalbin.spigotmc.easyportals.storage.SQLitePortalStorage;
+import de.teamalbin.spigotmc.easyportals.storage.YamlPortalStorage;
 import org.bukkit.Bukkit;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -16,30 +21,79 @@ public class EasyPortals extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        if (this.portals != null) this.portals.flushConfig();
     }
 
-    @Override
-    public void onEnable() {
-        String[] version = Bukkit.getServer().getClass().getPackage().getName().split("\\.");
-        switch (version[version.length-1]) {
-            case "v1_12_R1":
-                this.nms = new NMSInterface_1_12();
-                break;
+    /**
+     * Opens the storage backend selected in config.yml. When switching to the database
+     * for the first time, existing portals are migrated over from portals.yml.
+     */
+    private PortalStorage openStorage() throws IOException, InvalidConfigurationException {
+        File portalconfig = new File(getDataFolder(), "portals.yml");
+        String backend = getConfig().getString("storage", "yaml").toLowerCase();
+        switch (backend) {
+            case "yaml":
+                if (!portalconfig.exists()) {
+                    portalconfig.getParentFile().mkdirs();
+                    saveResource("portals.yml", false);
+                }
+                return new YamlPortalStorage(this, portalconfig);
+            case "sqlite":
+                SQLitePortalStorage db = new SQLitePortalStorage(this, new File(getDataFolder(), "portals.db"));
+                if (portalconfig.exists() && db.isEmpty()) {
+                    int migrated = PortalStorage.migrate(new YamlPortalStorage(this, portalconfig), db);
+                    if (migrated > 0) {
+                        getLogger().info("Migrated " + migrated + " portals from portals.yml to portals.db.");
+                        if (!portalconfig.renameTo(new File(getDataFolder(), "portals.yml.migrated")))
+                            getLogger().warning("Could not rename portals.yml after migration. It will be ignored from now on.");
+                    }
+                }
+                return db;
             default:
-                getLogger().severe("You're running a Minecraft version " + version[version.length-1] + " server.");
-                getLogger().severe("EasyPortals is not supported on this version. Deactivating plugin-- sorry!");
-                Bukkit.getPluginManager().disablePlugin(this);
+                throw new InvalidConfigurationException("Unknown storage backend '" + backend + "' in config.yml.");
         }
+    }
 
-
+    /**
+     * Picks the way to write blocks for this server: the compiled adapter if there is one for this
+     * version, else the bukkit API on older versions. Returns null if the version isn't supported;
+     * the plugin relies on pre-1.13 materials and block data, so 1.13 and later are not.
+     */
+    private NMSInterface selectNMSInterface() {
+        String[] pkg = Bukkit.getServer().getClass().getPackage().getName().split("\\.");
+        String version = pkg[pkg.length-1];
+        if (version.equals("v1_12_R1")) {
+            getLogger().info("Using the compiled " + version + " adapter for block updates.");
+            return new NMSInterface_1_12();
+        }
+        String[] parts = version.split("_");
         try {
-            File portalconfig = new File(getDataFolder(), "portals.yml");
-            this.portals = new PortalManager(nms, portalconfig);
-            if (new File(getDataFolder(), "portals.yml").exists()) this.portals.loadConfig();
-            else {
-                portalconfig.getParentFile().mkdirs();
-                saveResource("portals.yml", false);
+            if (parts.length == 3 && parts[0].equals("v1") && Integer.parseInt(parts[1]) < 13) {
+                getLogger().warning("No NMS adapter for Minecraft version " + version + ".");
+                getLogger().warning("Using the bukkit API for block updates. Building and loading portals will be slower.");
+                return new NMSInterface_Bukkit();
             }
+        } catch (NumberFormatException nfex) {
+            // not a version we know
+        }
+        getLogger().severe("You're running a Minecraft version " + version + " server.");
+        getLogger().severe("EasyPortals is not supported on this version. Deactivating plugin-- sorry!");
+        return null;
+    }
+
+    @Override
+    public void onEnable() {
+        this.nms = selectNMSInterface();
+        if (this.nms == null) {
+            Bukkit.getPluginManager().disablePlugin(this);
+            return;
+        }
+
+        saveDefaultConfig();
+        try {
+            this.portals = new PortalManager(this, nms, openStorage(), getConfig().getBoolean("lazy-activation", false),
+                    getConfig().getInt("max-portal-size", 16));
+            this.portals.loadConfig();
         } catch (IOException ioex) {
             getLogger().severe("Could not load portal configuration. (" + ioex.getMessage() + ")");
             Bukkit.getPluginManager().disablePlugin(this);
@@ -50,10 +104,37 @@ public class EasyPortals extends JavaPlugin {
             return;
         }
 
-        this.interaction = new PlayerInteraction(this.portals);
-        this.getCommand("portal").setPermission("easyportals.build");
+        this.portals.startRandomWarpPools(getConfig().getInt("random-warp.pool-size", 4),
+                getConfig().getLong("random-warp.max-age", 300), getConfig().getLong("random-warp.refill-interval", 20));
+        this.portals.startPrewarming(getConfig().getInt("prewarm.radius", 8), getConfig().getInt("prewarm.max-chunks", 16),
+                getConfig().getLong("prewarm.hold", 100), getConfig().getLong("prewarm.interval", 10));
+
+        this.interaction = new PlayerInteraction(this.portals,
+                new EntityTransport(this.nms, getConfig().getInt("entity-transport.per-tick", 20)));
+        // no command-level permission: /portal stats has its own, and onCommand checks both
         this.getCommand("portal").setExecutor(this.interaction);
         this.getCommand("portal").setTabCompleter(this.interaction);
         this.getServer().getPluginManager().registerEvents(this.interaction, this);
+        Bukkit.getScheduler().runTaskTimer(this, () -> {
+            this.portals.tick();
+            this.interaction.tick();
+        }, 1, 1);
+        startMetricsReports();
+    }
+
+    /**
+     * Periodically logs the metrics and/or writes them to a Prometheus text file, if configured.
+     */
+    private void startMetricsReports() {
+        long interval = getConfig().getLong("metrics.interval", 0) * 20;
+        if (interval <= 0) return;
+        boolean log = getConfig().getBoolean("metrics.log", true);
+        String fileName = getConfig().getString("metrics.prometheus-file", "");
+        ConfigPersister prometheus = fileName.isEmpty() ? null
+                : new ConfigPersister(this, new File(getDataFolder(), fileName), Metrics::toPrometheus);
+        Bukkit.getScheduler().runTaskTimer(this, () -> {
+            if (log) getLogger().info("Stats: " + String.join("; ", Metrics.describe()));
+            if (prometheus != null) prometheus.requestSave();
+        }, interval, interval);
     }
 }
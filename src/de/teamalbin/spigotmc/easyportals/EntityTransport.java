@@ -0,0 +1,106 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import de.teamalbin.spigotmc.easyportals.nms.NMSInterface;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.util.Vector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Moves entities other than players (items, minecarts, mobs) through linked portals. Entities
+ * that touch a portal are queued and sent once per tick, grouped by destination portal, so each
+ * destination chunk is loaded once per batch. At most a fixed number of entities are sent per
+ * tick; the rest wait for the next one.
+ */
+public class EntityTransport {
+    // entities fire an enter event every tick while they touch a portal; ignore them for this long
+    private static final int DEDUPE_TICKS = 20;
+
+    private static class Request {
+        private final Entity entity;
+        private final Portal portal;
+
+        private Request(Entity entity, Portal portal) {
+            this.entity = entity;
+            this.portal = portal;
+        }
+    }
+
+    private NMSInterface nms;
+    private int perTick;
+    private ArrayDeque<Request> queue = new ArrayDeque<>();
+    // entities in the queue, so they aren't queued twice if they wait longer than DEDUPE_TICKS
+    private HashSet<UUID> queued = new HashSet<>();
+    private ExpiringTracker recent = new ExpiringTracker(DEDUPE_TICKS);
+
+    /**
+     * @param perTick How many entities may be sent per tick. 0 turns entity transport off.
+     */
+    public EntityTransport(NMSInterface nms, int perTick) {
+        this.nms = nms;
+        this.perTick = perTick;
+    }
+
+    /**
+     * Whether enter events of this entity can be dropped right away, because it was just seen
+     * (or entity transport is off).
+     */
+    public boolean ignores(Entity entity) {
+        return perTick <= 0 || recent.isActive(entity.getUniqueId());
+    }
+
+    /**
+     * Called when an entity touches a portal. Queues it for transport if the portal leads anywhere.
+     */
+    public void enter(Entity entity, Portal portal) {
+        if (ignores(entity)) return;
+        recent.put(entity.getUniqueId(), DEDUPE_TICKS);
+        if (!portal.isLinked()) return;
+        // bukkit can't teleport entities that carry or ride something
+        if (!entity.isEmpty() || entity.isInsideVehicle()) return;
+        if (queued.add(entity.getUniqueId())) queue.add(new Request(entity, portal));
+    }
+
+    /**
+     * Sends this tick's share of the queue. Called once per tick.
+     */
+    public void tick() {
+        recent.tick();
+        if (queue.isEmpty()) return;
+        LinkedHashMap<Portal, ArrayList<Request>> batches = new LinkedHashMap<>();
+        for (int sent = 0; sent < perTick && !queue.isEmpty(); sent++) {
+            Request r = queue.poll();
+            queued.remove(r.entity.getUniqueId());
+            if (!r.entity.isValid() || !r.portal.isLinked()) continue;
+            batches.computeIfAbsent(r.portal.getLink(), k -> new ArrayList<>()).add(r);
+        }
+        for (Map.Entry<Portal, ArrayList<Request>> batch : batches.entrySet()) {
+            Location destination = batch.getKey().getLocation();
+            ArrayList<Request> requests = batch.getValue();
+            nms.loadChunkAsync(destination.getWorld(), destination.getBlockX() >> 4, destination.getBlockZ() >> 4, () -> {
+                for (Request r : requests) send(r);
+            });
+        }
+    }
+
+    private void send(Request r) {
+        Entity entity = r.entity;
+        if (!entity.isValid() || !r.portal.isLinked()) return;
+        // things mostly just fall or drift into portals, so go by where they're moving, then by where they face
+        Vector direction = entity.getVelocity();
+        if (direction.getX() == 0 && direction.getZ() == 0) direction = entity.getLocation().getDirection();
+        int exitIndex = r.portal.linkedExitIndex(direction);
+        if (exitIndex < 0) return;
+        Portal destination = r.portal.getLink();
+        Location exit = destination.getExitLocation(exitIndex);
+        if (exit == null) return; // blocked, they'll stay where they are
+        exit.add(0.5, 0, 0.5);
+        if (entity.teleport(exit)) entity.setVelocity(destination.getExitVelocity(exitIndex));
+    }
+}
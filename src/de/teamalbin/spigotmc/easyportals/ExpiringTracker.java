@@ -0,0 +1,66 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Remembers UUIDs (players, entities) for a short number of ticks, e.g. for cooldowns.
+ * Entries expire by themselves: they're sorted into the buckets of a timing wheel by their
+ * expiry tick, and every tick() sweeps one bucket. Time is counted in ticks as primitives,
+ * so refreshing an entry doesn't allocate anything but the bucket slot.
+ */
+public class ExpiringTracker {
+    private static class Entry {
+        private long expires;
+    }
+
+    private HashMap<UUID, Entry> entries = new HashMap<>();
+    private ArrayList<ArrayList<UUID>> wheel;
+    private long currentTick = 0;
+
+    /**
+     * @param maxTicks The longest duration that will be tracked.
+     */
+    public ExpiringTracker(int maxTicks) {
+        this.wheel = new ArrayList<>(maxTicks + 1);
+        for (int i = 0; i <= maxTicks; i++) this.wheel.add(new ArrayList<>());
+    }
+
+    private ArrayList<UUID> bucket(long tick) {
+        return wheel.get((int) (tick % wheel.size()));
+    }
+
+    /**
+     * Tracks the id for the given number of ticks, or extends the time if it's already tracked.
+     */
+    public void put(UUID id, int ticks) {
+        if (ticks <= 0 || ticks >= wheel.size()) throw new IllegalArgumentException("Can only track between 1 and " + (wheel.size() - 1) + " ticks.");
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(id, entry);
+        } else if (entry.expires == currentTick + ticks) return; // already in the right bucket
+        entry.expires = currentTick + ticks;
+        bucket(entry.expires).add(id);
+    }
+
+    public boolean isActive(UUID id) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.expires > currentTick;
+    }
+
+    /**
+     * Advances time by one tick and drops the entries that expired. Call once per server tick.
+     */
+    public void tick() {
+        currentTick++;
+        ArrayList<UUID> expiring = bucket(currentTick);
+        for (UUID id : expiring) {
+            Entry entry = entries.get(id);
+            // entries that were extended are still waiting in a later bucket
+            if (entry != null && entry.expires <= currentTick) entries.remove(id);
+        }
+        expiring.clear();
+    }
+}
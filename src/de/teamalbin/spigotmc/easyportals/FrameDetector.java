@@ -0,0 +1,304 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import de.teamalbin.spigotmc.easyportals.jfr.Flight;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.Arrays;
+
+/**
+ * Finds portal build sites and portal blocks. Works on plain block type ids and coordinates,
+ * so it can run against the live world as well as against chunk snapshots off the main thread.
+ * Instances keep state between calls, so use a separate one for every thread.
+ */
+@SuppressWarnings("deprecation")
+public class FrameDetector {
+
+    /**
+     * Source of block type ids. Returns UNKNOWN for blocks it can't tell about (outside
+     * a snapshot region, or outside the world), which makes any detection touching them fail.
+     */
+    public interface BlockTypes {
+        int UNKNOWN = -1;
+
+        int typeAt(int x, int y, int z);
+    }
+
+    /**
+     * A detected portal: its blocks as packed coordinates (see Utilities.packBlock) and its center.
+     */
+    public static class Site {
+        public final boolean isEW;
+        public final long[] blocks;
+        public final int centerX;
+        public final int centerY;
+        public final int centerZ;
+
+        private Site(boolean isEW, long[] blocks, int centerX, int centerY, int centerZ) {
+            this.isEW = isEW;
+            this.blocks = blocks;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.centerZ = centerZ;
+        }
+    }
+
+    /**
+     * Result of a site search. If no site was found but the search ran into blocks it couldn't
+     * see, it's incomplete and should be repeated against the live world.
+     */
+    public static class Result {
+        public final Site site;
+        public final boolean incomplete;
+
+        private Result(Site site, boolean incomplete) {
+            this.site = site;
+            this.incomplete = incomplete;
+        }
+    }
+
+    /**
+     * Block types of the live world. Main thread only.
+     */
+    public static BlockTypes live(World world) {
+        int maxHeight = world.getMaxHeight();
+        return (x, y, z) -> (y < 0 || y >= maxHeight) ? BlockTypes.UNKNOWN : world.getBlockAt(x, y, z).getType().getId();
+    }
+
+    /**
+     * Block types from chunk snapshots of a square area, safe to read from any thread.
+     */
+    public static class SnapshotRegion implements BlockTypes {
+        private final int minChunkX;
+        private final int minChunkZ;
+        private final int size;
+        private final int maxHeight;
+        private final ChunkSnapshot[] snapshots;
+
+        /**
+         * Takes snapshots of all loaded chunks within the radius around x/z. Must be called on the main thread.
+         * Chunks that aren't loaded are left out, and are UNKNOWN to the detector.
+         */
+        public SnapshotRegion(World world, int x, int z, int radius) {
+            this.minChunkX = (x - radius) >> 4;
+            this.minChunkZ = (z - radius) >> 4;
+            this.size = Math.max(((x + radius) >> 4) - minChunkX, ((z + radius) >> 4) - minChunkZ) + 1;
+            this.maxHeight = world.getMaxHeight();
+            this.snapshots = new ChunkSnapshot[size * size];
+            for (int cx = 0; cx < size; cx++) {
+                for (int cz = 0; cz < size; cz++) {
+                    if (!world.isChunkLoaded(minChunkX + cx, minChunkZ + cz)) continue;
+                    snapshots[cx * size + cz] = world.getChunkAt(minChunkX + cx, minChunkZ + cz).getChunkSnapshot(false, false, false);
+                }
+            }
+        }
+
+        @Override
+        public int typeAt(int x, int y, int z) {
+            if (y < 0 || y >= maxHeight) return UNKNOWN;
+            int cx = (x >> 4) - minChunkX;
+            int cz = (z >> 4) - minChunkZ;
+            if (cx < 0 || cz < 0 || cx >= size || cz >= size) return UNKNOWN;
+            ChunkSnapshot snapshot = snapshots[cx * size + cz];
+            if (snapshot == null) return UNKNOWN;
+            return snapshot.getBlockTypeId(x & 15, y, z & 15);
+        }
+    }
+
+    private final int airId = Material.AIR.getId();
+    private final int markerId;
+    private final int portalId;
+    private final int maxWidth;
+    private final int maxHeight;
+
+    // set when the last flood fill ran into an UNKNOWN block
+    private boolean touchedUnknown;
+    // if set, the flood fill records the blocks of its first row here (see detectNear)
+    private LongHashSet firstRow;
+
+    /**
+     * @param maxSize How far the flood fill may go sideways in one row, and up from the bottom row.
+     */
+    public FrameDetector(Material buildMarker, Material portalBlockType, int maxSize) {
+        this(buildMarker, portalBlockType, maxSize, maxSize);
+    }
+
+    /**
+     * @param maxWidth How far the flood fill may go sideways in one row.
+     * @param maxHeight How far the flood fill may go up from the bottom row.
+     */
+    public FrameDetector(Material buildMarker, Material portalBlockType, int maxWidth, int maxHeight) {
+        this.markerId = buildMarker.getId();
+        this.portalId = portalBlockType.getId();
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    private boolean isInsideBuild(int type) {
+        if (type == BlockTypes.UNKNOWN) touchedUnknown = true;
+        return type == airId || type == markerId || type == portalId;
+    }
+
+    public boolean isInsideBuild(BlockTypes types, int x, int y, int z) {
+        return isInsideBuild(types.typeAt(x, y, z));
+    }
+
+    /**
+     * Finds the blocks of the portal that has its bottom row at the start block.
+     * @return The portal, or null if there's no closed frame around the start block.
+     */
+    public Site findPortalBlocks(BlockTypes types, int x, int y, int z, boolean isEW) {
+        long start = System.nanoTime();
+        Site site = fill(types, x, y, z, isEW);
+        Metrics.FIND_PORTAL_BLOCKS.record(start, site == null);
+        Flight.RECORDER.floodFill(x, y, z, isEW, site == null ? 0 : site.blocks.length, site != null, start);
+        return site;
+    }
+
+    private Site fill(BlockTypes types, int x, int y, int z, boolean isEW) {
+        touchedUnknown = false;
+        // portals are flat, so we work in 2d: a is the horizontal coordinate along the portal,
+        // the other horizontal coordinate (plane) stays fixed.
+        int plane = isEW ? z : x;
+        // we use an abridged scanline flood fill algorithm to detect blocks that should be part of the
+        // portal. we can simplify the algorithm since we know we start on a flat bottom and can only go up.
+        long[] pblocks = new long[16];
+        int count = 0;
+        // stack of range starts, as (a, y) pairs
+        int[] ranges = new int[16];
+        int stack = 0;
+        ranges[stack++] = isEW ? x : z;
+        ranges[stack++] = y;
+        boolean haveCenter = false;
+        int centerA = 0;
+        int centerY = 0;
+        while (stack > 0) {
+            int ry = ranges[--stack];
+            int ra = ranges[--stack];
+            // rows can be reached from several ranges below; each only needs to be scanned once
+            if (count > 0 && contains(pblocks, count, pack(isEW, ra, ry, plane))) continue;
+            if (ry - y >= maxHeight) return null; // too tall, or no top to the frame
+            int moved = 0;
+            // first go left...
+            while (isInsideBuild(typeAt(types, isEW, ra, ry, plane)) && moved < maxWidth) {
+                if (!haveCenter && firstRow != null) firstRow.add(pack(isEW, ra, ry, plane));
+                ra--;
+                moved++;
+            }
+            if (isInsideBuild(typeAt(types, isEW, ra, ry, plane)) || touchedUnknown) return null;
+            boolean haveRange = false;
+            moved = 0;
+            // then go right, adding blocks to the portal
+            // mark free blocks above for next ranges
+            ra++;
+            while (isInsideBuild(typeAt(types, isEW, ra, ry, plane)) && moved < maxWidth) {
+                // there shouldn't be air blocks below the center line unless the build markers
+                // weren't on the ground
+                if (!haveCenter) {
+                    int below = typeAt(types, isEW, ra, ry - 1, plane);
+                    if (below == BlockTypes.UNKNOWN) touchedUnknown = true;
+                    if (below == airId) break;
+                }
+                if (isInsideBuild(typeAt(types, isEW, ra, ry + 1, plane))) {
+                    if (!haveRange) {
+                        haveRange = true;
+                        if (stack + 2 > ranges.length) ranges = Arrays.copyOf(ranges, ranges.length * 2);
+                        ranges[stack++] = ra;
+                        ranges[stack++] = ry + 1;
+                    }
+                } else haveRange = false;
+                if (count == pblocks.length) pblocks = Arrays.copyOf(pblocks, count * 2);
+                pblocks[count++] = pack(isEW, ra, ry, plane);
+                if (!haveCenter && firstRow != null) firstRow.add(pblocks[count - 1]);
+                moved++;
+                ra++;
+            }
+            if (isInsideBuild(typeAt(types, isEW, ra, ry, plane)) || touchedUnknown) return null;
+            if (!haveCenter) {
+                haveCenter = true;
+                centerA = ra - moved / 2;
+                centerY = ry;
+                if (count == 1) centerA = ra - 1;
+            }
+        }
+        if (count < 2) return null; // too small
+        long[] blocks = Arrays.copyOf(pblocks, count);
+        Arrays.sort(blocks);
+        return new Site(isEW, blocks, isEW ? centerA : plane, centerY, isEW ? plane : centerA);
+    }
+
+    /**
+     * Looks for the nearest portal build site within some distance of a location. Build sites
+     * are build marker blocks on solid ground, inside a frame.
+     */
+    public Result detectNear(BlockTypes types, int x, int y, int z, int distance) {
+        long start = System.nanoTime();
+        int tries = 0;
+        boolean incomplete = false;
+        // a flood fill has the same outcome from every block of its first row, so once we tried
+        // one marker, the other markers in that row don't need their own attempt.
+        LongHashSet triedEW = new LongHashSet();
+        LongHashSet triedNS = new LongHashSet();
+        int[] order = Utilities.scanOrder(distance);
+        try {
+            for (int i = 0; i < order.length; i += 3) {
+                int bx = x + order[i];
+                int by = y + order[i + 1];
+                int bz = z + order[i + 2];
+                // maybe add column-type portals...
+                int type = types.typeAt(bx, by, bz);
+                if (type == BlockTypes.UNKNOWN) incomplete = true;
+                if (type != markerId) continue;
+                // might be a regular portal site
+                if (types.typeAt(bx, by - 1, bz) == airId) continue;
+                // probe if the portal is supposed to go east/west or north/south
+                int east = types.typeAt(bx + 1, by, bz);
+                int west = types.typeAt(bx - 1, by, bz);
+                int north = types.typeAt(bx, by, bz - 1);
+                int south = types.typeAt(bx, by, bz + 1);
+                boolean isEW = east == markerId || west == markerId;
+                boolean isNS = north == markerId || south == markerId;
+                // for portals with a 1-block center, check the sides for frame blocks
+                if (!isEW && !isNS) {
+                    isEW = east != airId && west != airId;
+                    isNS = north != airId && south != airId;
+                }
+                if (isNS == isEW) continue; // both or neither? makes no sense
+                LongHashSet tried = isEW ? triedEW : triedNS;
+                if (tried.contains(Utilities.packBlock(bx, by, bz))) continue;
+
+                // now that we know the direction, we can traverse the portal 2-dimensionally and find the blocks
+                this.firstRow = tried;
+                Site site = findPortalBlocks(types, bx, by, bz, isEW);
+                this.firstRow = null;
+                tries++;
+                if (touchedUnknown) incomplete = true;
+                if (site != null) {
+                    // found something!
+                    Flight.RECORDER.siteSearch(x, y, z, tries, true, start);
+                    return new Result(site, false);
+                }
+            }
+        } finally {
+            this.firstRow = null;
+        }
+        Flight.RECORDER.siteSearch(x, y, z, tries, false, start);
+        return new Result(null, incomplete);
+    }
+
+    private static int typeAt(BlockTypes types, boolean isEW, int a, int y, int plane) {
+        return isEW ? types.typeAt(a, y, plane) : types.typeAt(plane, y, a);
+    }
+
+    private static long pack(boolean isEW, int a, int y, int plane) {
+        return isEW ? Utilities.packBlock(a, y, plane) : Utilities.packBlock(plane, y, a);
+    }
+
+    private static boolean contains(long[] blocks, int count, long packed) {
+        for (int i = 0; i < count; i++) {
+            if (blocks[i] == packed) return true;
+        }
+        return false;
+    }
+}
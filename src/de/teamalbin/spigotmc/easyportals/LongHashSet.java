@@ -0,0 +1,91 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import java.util.Arrays;
+
+/**
+ * Minimal open-addressing hash set for primitive longs. Lookups don't allocate,
+ * which is what we need for checks that run on every block physics update.
+ * Only supports adding and clearing; rebuild the set if entries have to go.
+ */
+public class LongHashSet {
+    private long[] keys;
+    private boolean hasZero;
+    private int size;
+    private int mask;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        this.keys = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        // murmur3 finalizer, spreads neighbouring chunk keys over the table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) return hasZero;
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == 0) return false;
+            if (k == key) return true;
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void add(long key) {
+        if (key == 0) {
+            if (!hasZero) size++;
+            hasZero = true;
+            return;
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) return;
+            if (k == 0) break;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        size++;
+        if (size * 2 > keys.length) grow();
+    }
+
+    private void grow() {
+        long[] old = keys;
+        keys = new long[old.length * 2];
+        mask = keys.length - 1;
+        for (long k : old) {
+            if (k == 0) continue;
+            int i = hash(k) & mask;
+            while (keys[i] != 0) i = (i + 1) & mask;
+            keys[i] = k;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,150 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts and latency histograms for the hot paths, shown by /portal stats. Counters are
+ * striped (LongAdder), so they can be recorded from any thread, and recording never allocates.
+ * Latencies go into fixed buckets, so percentiles are only as exact as the bucket bounds.
+ */
+public final class Metrics {
+    // bucket upper bounds in microseconds; one more bucket takes everything above the last one
+    private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000};
+
+    private static final List<Timer> timers = new ArrayList<>();
+
+    public static final Timer CREATURE_SPAWN = new Timer("creature_spawn");
+    public static final Timer BLOCK_PHYSICS = new Timer("block_physics");
+    public static final Timer ENTITY_PORTAL = new Timer("entity_portal");
+    public static final Timer PLAYER_PORTAL = new Timer("player_portal");
+    public static final Timer ENTITY_ENTER_PORTAL = new Timer("entity_enter_portal");
+    public static final Timer BLOCK_BREAK = new Timer("block_break");
+    public static final Timer BLOCK_PLACE = new Timer("block_place");
+    public static final Timer BLOCK_EXPLODE = new Timer("block_explode");
+    public static final Timer BLOCK_FROM_TO = new Timer("block_from_to");
+    public static final Timer CHUNK_LOAD = new Timer("chunk_load");
+    public static final Timer CHUNK_UNLOAD = new Timer("chunk_unload");
+    public static final Timer SAVE_CONFIG = new Timer("save_config");
+    public static final Timer LOAD_CONFIG = new Timer("load_config");
+    public static final Timer FIND_PORTAL_BLOCKS = new Timer("find_portal_blocks");
+    public static final Timer TELEPORT = new Timer("teleport");
+
+    private Metrics() {
+    }
+
+    /**
+     * Counts calls of one operation and how long they took. Cancelled means the operation
+     * said no: an event was cancelled, a teleport didn't happen, an explosion had to spare portal blocks.
+     */
+    public static final class Timer {
+        private final String name;
+        private final LongAdder cancelled = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+        private Timer(String name) {
+            this.name = name;
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+            timers.add(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Records one call that started at startNanos (from System.nanoTime()).
+         */
+        public void record(long startNanos) {
+            record(startNanos, false);
+        }
+
+        public void record(long startNanos, boolean wasCancelled) {
+            long nanos = System.nanoTime() - startNanos;
+            long micros = nanos / 1000;
+            int bucket = 0;
+            while (bucket < BOUNDS.length && micros > BOUNDS[bucket]) bucket++;
+            buckets[bucket].increment();
+            totalNanos.add(nanos);
+            if (wasCancelled) cancelled.increment();
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder b : buckets) count += b.sum();
+            return count;
+        }
+
+        public long getCancelled() {
+            return cancelled.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Returns the bucket bound (in microseconds) below which the given fraction of calls fell,
+         * or -1 if they fell into the last, open bucket.
+         */
+        public long percentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= total * fraction) return BOUNDS[i];
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Returns one human-readable line per operation that has been called at least once.
+     */
+    public static List<String> describe() {
+        ArrayList<String> lines = new ArrayList<>();
+        for (Timer t : timers) {
+            long count = t.getCount();
+            if (count == 0) continue;
+            lines.add(String.format(Locale.ROOT, "%s: %d calls, %d cancelled, avg %.1fus, p50 %s, p99 %s",
+                    t.name, count, t.getCancelled(), t.getTotalNanos() / 1000.0 / count,
+                    describeBound(t.percentile(0.5)), describeBound(t.percentile(0.99))));
+        }
+        return lines;
+    }
+
+    private static String describeBound(long micros) {
+        return micros < 0 ? ">" + BOUNDS[BOUNDS.length - 1] + "us" : "<=" + micros + "us";
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Timer t : timers) {
+            String metric = "easyportals_" + t.name + "_seconds";
+            sb.append("# TYPE ").append(metric).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < t.buckets.length; i++) {
+                cumulative += t.buckets[i].sum();
+                String le = i < BOUNDS.length ? Double.toString(BOUNDS[i] / 1e6) : "+Inf";
+                sb.append(metric).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(metric).append("_sum ").append(t.getTotalNanos() / 1e9).append('\n');
+            sb.append(metric).append("_count ").append(cumulative).append('\n');
+            String cancelledMetric = "easyportals_" + t.name + "_cancelled_total";
+            sb.append("# TYPE ").append(cancelledMetric).append(" counter\n");
+            sb.append(cancelledMetric).append(' ').append(t.getCancelled()).append('\n');
+        }
+        return sb.toString();
+    }
+}
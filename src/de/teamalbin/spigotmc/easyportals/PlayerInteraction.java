@@ -10,6 +10,7 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockFromToEvent;
 import org.bukkit.event.block.BlockPhysicsEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.CreatureSpawnEvent;
@@ -17,30 +18,23 @@ import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.event.entity.EntityPortalEnterEvent;
 import org.bukkit.event.entity.EntityPortalEvent;
 import org.bukkit.event.player.PlayerPortalEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class PlayerInteraction implements Listener, CommandExecutor, TabCompleter {
     private PortalManager portals;
+    private EntityTransport transport;
 
-    public PlayerInteraction(PortalManager portals) {
+    public PlayerInteraction(PortalManager portals, EntityTransport transport) {
         this.portals = portals;
-    }
-
-    private List<Block> blocksAround(Block b) {
-        return Arrays.asList(b,
-                b.getRelative(-1, 0, 0), b.getRelative(1, 0, 0),
-                b.getRelative(0, -1, 0), b.getRelative(0, 1, 0),
-                b.getRelative(0, 0, -1), b.getRelative(0, 0, 1),
-                b.getRelative(-1, 1, 0), b.getRelative(1, 1, 0),
-                b.getRelative(0, 1, -1), b.getRelative(0, 1, 1),
-                b.getRelative(-1, -1, 0), b.getRelative(1, -1, 0),
-                b.getRelative(0, -1, -1), b.getRelative(0, -1, 1));
+        this.transport = transport;
     }
 
     @EventHandler
@@ -48,85 +42,149 @@ public class PlayerInteraction implements Listener, CommandExecutor, TabComplete
         // don't spawn baddies from our portals
         if (event.isCancelled()) return;
         if (event.getSpawnReason() != CreatureSpawnEvent.SpawnReason.NETHER_PORTAL) return;
+        long start = System.nanoTime();
         if (portals.manages(event.getLocation().getBlock())) event.setCancelled(true);
+        Metrics.CREATURE_SPAWN.record(start, event.isCancelled());
     }
 
     @EventHandler
     public void onBlockPhysics(BlockPhysicsEvent event) {
         // prevent automatic despawning of portal blocks that belong to our portals
         if (event.isCancelled()) return;
+        long start = System.nanoTime();
         if (portals.manages(event)) event.setCancelled(true);
+        Metrics.BLOCK_PHYSICS.record(start, event.isCancelled());
     }
 
     @EventHandler
     public void onEntityPortal(EntityPortalEvent event) {
         if (event.isCancelled()) return;
+        long start = System.nanoTime();
         if (portals.manages(event.getEntity().getLocation().getBlock())) event.setCancelled(true);
+        Metrics.ENTITY_PORTAL.record(start, event.isCancelled());
     }
 
     // prevent players who have recently touched a portal from entering the nether by mistake
-    private HashMap<String, Instant> netherProtect = new HashMap<>();
+    private static final int NETHER_PROTECT_TICKS = 140;
+    private ExpiringTracker netherProtect = new ExpiringTracker(NETHER_PROTECT_TICKS);
+
+    /**
+     * Expires nether protection and sends entities through portals. Called once per tick.
+     */
+    public void tick() {
+        netherProtect.tick();
+        transport.tick();
+    }
 
     @EventHandler
     public void onPlayerPortal(PlayerPortalEvent event) {
         if (event.isCancelled()) return;
-        if (netherProtect.containsKey(event.getPlayer().getName()) &&
-                netherProtect.get(event.getPlayer().getName()).isAfter(Instant.now())) {
-            event.setCancelled(true);
-            return;
-        }
-        if (portals.manages(blocksAround(event.getFrom().getBlock()), event.getFrom().getBlock())) event.setCancelled(true);
+        long start = System.nanoTime();
+        if (netherProtect.isActive(event.getPlayer().getUniqueId())) event.setCancelled(true);
+        else if (portals.managesAround(event.getFrom().getBlock())) event.setCancelled(true);
+        Metrics.PLAYER_PORTAL.record(start, event.isCancelled());
     }
 
     @EventHandler
     public void onEntityEnterPortal(EntityPortalEnterEvent event) {
-        if (!(event.getEntity() instanceof Player)) return;
-        Player player = (Player) event.getEntity();
+        if (!(event.getEntity() instanceof Player) && transport.ignores(event.getEntity())) return;
+        long start = System.nanoTime();
         Portal portal = portals.findPortalFor(event.getLocation().getBlock());
         if (portal != null) {
-            netherProtect.put(player.getName(), Instant.now().plusSeconds(7));
-            portal.teleport(player);
+            if (event.getEntity() instanceof Player) {
+                Player player = (Player) event.getEntity();
+                netherProtect.put(player.getUniqueId(), NETHER_PROTECT_TICKS);
+                portal.teleport(player, portals.getCooldowns());
+            } else transport.enter(event.getEntity(), portal);
         }
+        Metrics.ENTITY_ENTER_PORTAL.record(start);
     }
 
     @EventHandler
     public void onBlockBreak(BlockBreakEvent event) {
-        Block b = event.getBlock();
-        if (portals.manages(blocksAround(b), b)) event.setCancelled(true);
+        long start = System.nanoTime();
+        if (portals.managesAround(event.getBlock())) event.setCancelled(true);
+        else portals.blockChanged(event.getBlock());
+        Metrics.BLOCK_BREAK.record(start, event.isCancelled());
     }
 
     @EventHandler
     public void onBlockPlace(BlockPlaceEvent event) {
-        Block b = event.getBlock();
-        if (portals.manages(blocksAround(b), b)) event.setCancelled(true);
+        long start = System.nanoTime();
+        if (portals.managesAround(event.getBlock())) event.setCancelled(true);
+        else portals.blockChanged(event.getBlock());
+        Metrics.BLOCK_PLACE.record(start, event.isCancelled());
     }
 
     @EventHandler
     public void onBlockExplode(EntityExplodeEvent event) {
-        if (portals.manages(event.blockList(), event.getLocation().getBlock())) event.setCancelled(true);
+        long start = System.nanoTime();
+        List<Block> blocks = event.blockList();
+        BitSet managed = portals.managedBlocks(blocks);
+        if (!managed.isEmpty()) {
+            // let the explosion happen, just without our portals and their frames
+            ArrayList<Block> kept = new ArrayList<>(blocks.size() - managed.cardinality());
+            for (int i = managed.nextClearBit(0); i < blocks.size(); i = managed.nextClearBit(i + 1)) kept.add(blocks.get(i));
+            blocks.clear();
+            blocks.addAll(kept);
+        }
+        for (Block b : blocks) portals.blockChanged(b);
+        Metrics.BLOCK_EXPLODE.record(start, !managed.isEmpty());
     }
 
-    private static final List<String> completableCommands = Arrays.asList("create", "list", "link", "flip", "visit", "unlink", "destroy");
+    @EventHandler
+    public void onBlockFromTo(BlockFromToEvent event) {
+        // flowing water or lava can block portal exits
+        if (event.isCancelled()) return;
+        long start = System.nanoTime();
+        portals.blockChanged(event.getToBlock());
+        Metrics.BLOCK_FROM_TO.record(start);
+    }
+
+    @EventHandler
+    public void onChunkLoad(ChunkLoadEvent event) {
+        long start = System.nanoTime();
+        portals.chunkLoaded(event.getChunk());
+        Metrics.CHUNK_LOAD.record(start);
+    }
+
+    @EventHandler
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        // someone is about to step into a portal that leads here
+        long start = System.nanoTime();
+        if (portals.keepLoaded(event.getChunk())) event.setCancelled(true);
+        Metrics.CHUNK_UNLOAD.record(start, event.isCancelled());
+    }
+
+    // more than this many portal names are of no use in the completion list
+    private static final int MAX_COMPLETIONS = 50;
+    private static final List<String> completableCommands = Arrays.asList("create", "list", "link", "flip", "visit", "unlink", "destroy", "stats");
 
     @Override
     public List<String> onTabComplete(CommandSender commandSender, Command command, String alias, String[] strings) {
         if (!command.getName().equals("portal")) return null;
-        if (!commandSender.hasPermission("easyportals.build")) return null;
+        if (!commandSender.hasPermission("easyportals.build")) {
+            if (strings.length == 1 && commandSender.hasPermission("easyportals.stats") && "stats".startsWith(strings[0]))
+                return Collections.singletonList("stats");
+            return null;
+        }
         if (strings.length == 1) return PlayerInteraction.completableCommands.stream()
                 .filter(cp -> cp.startsWith(strings[0])).collect(Collectors.toList());
         if (strings.length > 1) {
-            ArrayList<String> portalNames = this.portals.getNames();
-            if (strings.length == 2) return portalNames.stream().filter(cp -> cp.startsWith(strings[1])).collect(Collectors.toList());
-            portalNames.add("random");
-            portalNames.add("here");
-            if (strings.length == 3) return portalNames.stream().filter(cp -> cp.startsWith(strings[2])).collect(Collectors.toList());
+            if (strings.length == 2) return this.portals.namesStartingWith(strings[1], MAX_COMPLETIONS);
+            if (strings.length == 3) {
+                List<String> portalNames = this.portals.namesStartingWith(strings[2], MAX_COMPLETIONS);
+                if ("random".startsWith(strings[2])) portalNames.add("random");
+                if ("here".startsWith(strings[2])) portalNames.add("here");
+                return portalNames;
+            }
         }
         return null;
     }
 
-    private boolean mayPerform(Player player, String permission) {
-        if (player.hasPermission(permission)) return true;
-        player.sendMessage(ChatColor.RED + "Sorry, you may not perform that command. Missing permission: " + ChatColor.RESET + permission);
+    private boolean mayPerform(CommandSender sender, String permission) {
+        if (sender.hasPermission(permission)) return true;
+        sender.sendMessage(ChatColor.RED + "Sorry, you may not perform that command. Missing permission: " + ChatColor.RESET + permission);
         return false;
     }
 
@@ -136,8 +194,21 @@ public class PlayerInteraction implements Listener, CommandExecutor, TabComplete
         return true;
     }
 
+    /**
+     * Shows the hot path metrics. Works from the console, too.
+     */
+    private boolean showStats(CommandSender sender) {
+        if (!mayPerform(sender, "easyportals.stats")) return true;
+        sender.sendMessage(ChatColor.GOLD + "EasyPortals stats" + ChatColor.RESET + " (" + portals.getPortalCount() + " portals)");
+        sender.sendMessage("physics: " + portals.getPhysicsFastRejects() + " fast rejects, " + portals.getPhysicsFullChecks() + " full checks");
+        for (String line : Metrics.describe()) sender.sendMessage(line);
+        return true;
+    }
+
     @Override
     public boolean onCommand(CommandSender commandSender, Command command, String s, String[] strings) {
+        if (command.getName().equals("portal") && strings.length == 1 && strings[0].equalsIgnoreCase("stats"))
+            return showStats(commandSender);
         if (!(commandSender instanceof Player)) return false;
         Player player = (Player) commandSender;
         if (!command.getName().equals("portal")) return false;
@@ -188,7 +259,25 @@ public class PlayerInteraction implements Listener, CommandExecutor, TabComplete
                 return checkError(player, this.portals.destroyPortal(player, strings[1]));
             } else return true;
             case "list": if (mayPerform(player, "easyportals.build")) {
-                return checkError(player, this.portals.list(player));
+                if (strings.length > 3) {
+                    player.sendMessage("Try /portal list [page] [filter], or /portal list <filter>.");
+                    return true;
+                }
+                int page = 1;
+                String filter = "";
+                if (strings.length > 1) {
+                    try {
+                        page = Integer.parseInt(strings[1]);
+                        if (strings.length == 3) filter = strings[2];
+                    } catch (NumberFormatException nfe) {
+                        if (strings.length == 3) {
+                            player.sendMessage("The page has to be a number: /portal list [page] [filter]");
+                            return true;
+                        }
+                        filter = strings[1];
+                    }
+                }
+                return checkError(player, this.portals.list(player, page, filter));
             } else return true;
         }
         player.sendMessage(ChatColor.RED + "Sorry, that's not a known command.");
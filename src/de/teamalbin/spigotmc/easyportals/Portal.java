@@ -1,20 +1,24 @@
 package de.teamalbin.spigotmc.easyportals;
 
+import de.teamalbin.spigotmc.easyportals.jfr.Flight;
+import de.teamalbin.spigotmc.easyportals.storage.StoredPortal;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.Collectors;
 
 public class Portal {
     private static int randomRange = 6000;
     private static int randomMaxTries = 8;
+    // after using a portal, players can't use any portal for this long (3 seconds)
+    public static final int COOLDOWN_TICKS = 60;
 
     private String name;
     private Location location;
@@ -24,19 +28,123 @@ public class Portal {
     // a bit janky, but it's easier/faster to load from config if we can set this from the PortalManager.
     protected Portal link;
 
-    private String target;
-    private List<Block> blocks;
-    private Instant cooldown;
+    private PortalTarget target;
+    // portal blocks as packed coordinates (see Utilities.packBlock), sorted for binary search.
+    // we don't keep Block objects around since they pin their world and chunk.
+    private long[] blocks;
+    // bounding box of the blocks, inclusive. empty (min > max) while the portal is inactive.
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+    private boolean active;
+    // encoded blocks and frame checksum, persisted so the portal can be rebuilt without a flood fill
+    private String geometry;
+    private long frameChecksum;
+    private RandomWarpPool warpPool;
+
+    // exits of this portal for players arriving through a link, one per walk-out direction.
+    // computed on first use, and thrown away when blocks around the portal change.
+    private static final int EXIT_EAST = 0;
+    private static final int EXIT_WEST = 1;
+    private static final int EXIT_SOUTH = 2;
+    private static final int EXIT_NORTH = 3;
+    private static final int[][] EXIT_DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    // how far exits are from the portal center
+    static final int EXIT_DISTANCE = 2;
+
+    private static class ExitFrame {
+        private final Location location;
+        private final boolean free;
+        // how far below the exit the floor was found, if it's free
+        private final int floorDepth;
+        private final Vector velocity;
+
+        private ExitFrame(Location location, int floorDepth, Vector velocity) {
+            this.location = location;
+            this.free = floorDepth > 0;
+            this.floorDepth = floorDepth;
+            this.velocity = velocity;
+        }
+
+        /**
+         * Whether the exit is still free. Blocks can be changed by all sorts of things we don't hear about
+         * (pistons, falling sand, endermen, other plugins), so free exits are checked again before each use.
+         * Only looks at the two blocks the player takes up and the floor, so it's cheap. Blocked exits
+         * are never trusted: they can be cleared just as silently, and are looked at again in full.
+         */
+        private boolean stillFree() {
+            if (!free) return false;
+            Block b = location.getBlock();
+            if (b.getType() != Material.AIR || b.getRelative(BlockFace.UP).getType() != Material.AIR) return false;
+            Material floor = b.getRelative(0, -floorDepth, 0).getType();
+            return floor != Material.AIR && !isUnsafeType(floor);
+        }
+    }
 
-    public Portal(Location loc, String name, boolean isEW, boolean flipped, String target, Portal link, List<Block> blocks) {
+    private ExitFrame[] exits = new ExitFrame[EXIT_DIRECTIONS.length];
+
+    public Portal(Location loc, String name, boolean isEW, boolean flipped, PortalTarget target, Portal link, long[] blocks) {
         this.location = loc;
         this.name = name;
         this.isEW = isEW;
         this.flipped = flipped;
         this.link = link;
         this.target = target;
-        this.blocks = blocks;
-        this.enableCooldown();
+        if (blocks != null) this.activate(blocks);
+        else this.blocks = new long[0];
+    }
+
+    /**
+     * Sets the blocks of a portal that was registered without them (lazy activation).
+     * @param blocks Packed block coordinates (see Utilities.packBlock).
+     */
+    public void activate(long[] blocks) {
+        this.blocks = blocks.clone();
+        Arrays.sort(this.blocks);
+        for (long packed : this.blocks) {
+            int x = Utilities.unpackX(packed);
+            int y = Utilities.unpackY(packed);
+            int z = Utilities.unpackZ(packed);
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            if (z < minZ) minZ = z;
+            if (z > maxZ) maxZ = z;
+        }
+        this.active = true;
+        if (this.geometry == null) {
+            this.geometry = PortalGeometry.encode(this.blocks, this.isEW);
+            this.frameChecksum = PortalGeometry.frameChecksum(this.location.getWorld(), this.blocks, this.isEW);
+        }
+    }
+
+    /**
+     * Sets the geometry snapshot loaded from storage, used to rebuild the portal on activation.
+     * Set to null before activating with different blocks, so the snapshot is recomputed.
+     */
+    public void setStoredGeometry(String geometry, long frameChecksum) {
+        this.geometry = geometry;
+        this.frameChecksum = frameChecksum;
+    }
+
+    public String getGeometry() {
+        return geometry;
+    }
+
+    public long getFrameChecksum() {
+        return frameChecksum;
+    }
+
+    /**
+     * Whether this portal's blocks are known and in place. Portals that are loaded lazily
+     * stay inactive until their chunk is loaded.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    static int getRandomRange() {
+        return randomRange;
     }
 
     public String getName() {
@@ -47,7 +155,7 @@ public class Portal {
         return location;
     }
 
-    public String getTarget() {
+    public PortalTarget getTarget() {
         return target;
     }
 
@@ -63,6 +171,24 @@ public class Portal {
         this.flipped = flipped;
     }
 
+    /**
+     * Takes a snapshot of the persistent state of this portal for the storage backend.
+     */
+    public StoredPortal toStored() {
+        return new StoredPortal(this.name, this.location.getWorld().getName(), this.location.getX(),
+                this.location.getY(), this.location.getZ(), this.isEW, this.flipped,
+                this.target == null ? null : this.target.serialize(),
+                this.geometry, this.frameChecksum);
+    }
+
+    public RandomWarpPool getWarpPool() {
+        return warpPool;
+    }
+
+    public void setWarpPool(RandomWarpPool warpPool) {
+        this.warpPool = warpPool;
+    }
+
     public Portal getLink() {
         return link;
     }
@@ -91,26 +217,22 @@ public class Portal {
             link.unlink(player);
         }
         this.link = link;
-        this.target = "portal:" + link.name;
+        this.target = new PortalTarget.Linked(link.name);
         link.link = this;
-        link.target = "portal:" + this.name;
+        link.target = new PortalTarget.Linked(this.name);
         if (player != null) player.sendMessage("Portal " + this.niceName() + " linked to " + link.niceName() + ".");
     }
 
     public void makeRandom(Player player) {
         if (this.link != null) {
-            this.unlink(player);
             this.link.unlink(player);
+            this.unlink(player);
         }
         this.link = null;
-        this.target = "random";
+        this.target = PortalTarget.RandomWarp.INSTANCE;
         if (player != null) player.sendMessage("Portal " + this.niceName() + " is now a random warp.");
     }
 
-    private String pointToTarget(Location point) {
-        return point.getBlockX() + ", " + point.getBlockY() + ", " + point.getBlockZ();
-    }
-
     public void makePoint(Player player, Location point) {
         if (this.getLocation().getWorld() != point.getWorld()) {
             player.sendMessage(ChatColor.RED + "Error: " + ChatColor.RESET + "Can't use portals to link between different worlds.");
@@ -121,31 +243,132 @@ public class Portal {
             this.unlink(player);
         }
         this.link = null;
-        this.target = "point:" + pointToTarget(point) + ":" + point.getPitch() + ":" + point.getYaw();
-        if (player != null) player.sendMessage("Portal " + this.niceName() + " now warps to fixed point (" + pointToTarget(point) + ").");
+        PortalTarget.Point target = new PortalTarget.Point(new Location(point.getWorld(),
+                point.getBlockX(), point.getBlockY(), point.getBlockZ(), point.getYaw(), point.getPitch()));
+        this.target = target;
+        if (player != null) player.sendMessage("Portal " + this.niceName() + " now warps to fixed point (" + target.describePoint() + ").");
     }
 
+    /**
+     * Builds Block views for all portal blocks. This allocates, so don't use it on hot paths--
+     * use contains() for membership tests instead.
+     */
     public List<Block> getBlocks() {
+        World world = this.location.getWorld();
+        ArrayList<Block> views = new ArrayList<>(blocks.length);
+        for (long packed : blocks) {
+            views.add(world.getBlockAt(Utilities.unpackX(packed), Utilities.unpackY(packed), Utilities.unpackZ(packed)));
+        }
+        return views;
+    }
+
+    public long[] getPackedBlocks() {
         return blocks;
     }
 
-    private void enableCooldown() {
-        Instant cd = Instant.now().plusSeconds(3);
-        this.cooldown = cd;
-        if (this.link != null) {
-            this.link.cooldown = cd;
+    /**
+     * Whether the block is within this portal's bounding box. Cheap, so it rules out most blocks
+     * before the exact check.
+     */
+    public boolean boxContains(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    /**
+     * Whether the bounding box comes within the given number of blocks of a location on every axis.
+     */
+    public boolean boxWithin(int x, int y, int z, int distance) {
+        return x >= minX - distance && x <= maxX + distance && y >= minY - distance && y <= maxY + distance
+                && z >= minZ - distance && z <= maxZ + distance;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        if (!boxContains(x, y, z)) return false;
+        return Arrays.binarySearch(blocks, Utilities.packBlock(x, y, z)) >= 0;
+    }
+
+    public boolean contains(Block b) {
+        return b.getWorld() == this.location.getWorld() && contains(b.getX(), b.getY(), b.getZ());
+    }
+
+    private ExitFrame getExit(int exitIndex) {
+        ExitFrame exit = this.exits[exitIndex];
+        // blocked exits are the rare case, so they aren't worth keeping
+        if (exit != null && !exit.stillFree()) exit = null;
+        if (exit == null) {
+            int dx = EXIT_DIRECTIONS[exitIndex][0];
+            int dz = EXIT_DIRECTIONS[exitIndex][1];
+            Block block = this.location.getBlock().getRelative(EXIT_DISTANCE * dx, 0, EXIT_DISTANCE * dz);
+            Location loc = block.getLocation();
+            loc.setDirection(new Vector(dx, 0, dz));
+            // walk out a little faster than just stepping
+            exit = new ExitFrame(loc, findFloor(block), new Vector(dx * 0.66, 0, dz * 0.66));
+            this.exits[exitIndex] = exit;
         }
+        return exit;
+    }
+
+    /**
+     * Whether this portal leads to another portal.
+     */
+    public boolean isLinked() {
+        return this.link != null && this.target instanceof PortalTarget.Linked;
+    }
+
+    /**
+     * Returns which exit of the linked portal something moving in the given direction comes out of,
+     * or -1 if it's moving straight up or down.
+     */
+    public int linkedExitIndex(Vector direction) {
+        double dx = direction.getX();
+        double dz = direction.getZ();
+        // source and target portal have different orientations -> flip axes
+        if (this.isEW != this.link.isEW) { double swap = dx; dx = dz; dz = swap; }
+        // portal is flipped -> flip directions
+        if (this.link.flipped) { dx = -dx; dz = -dz; }
+        if (Math.abs(dx) > Math.abs(dz)) return dx > 0 ? EXIT_EAST : EXIT_WEST;
+        else if (dz != 0) return dz > 0 ? EXIT_SOUTH : EXIT_NORTH;
+        return -1; // no way to tell
+    }
+
+    /**
+     * Returns where things leaving this portal through the given exit end up, or null if the exit is blocked.
+     */
+    public Location getExitLocation(int exitIndex) {
+        ExitFrame exit = getExit(exitIndex);
+        return exit.free ? exit.location.clone() : null;
+    }
+
+    /**
+     * Returns the velocity things leaving this portal through the given exit get.
+     */
+    public Vector getExitVelocity(int exitIndex) {
+        return getExit(exitIndex).velocity.clone();
+    }
+
+    /**
+     * Returns whether a block is inside the area that decides whether the exits of this portal are free.
+     */
+    public boolean isNearExit(int x, int y, int z) {
+        return Math.abs(x - this.location.getBlockX()) <= 2 && Math.abs(z - this.location.getBlockZ()) <= 2
+                && y <= this.location.getBlockY() + 1 && y >= this.location.getBlockY() - 5;
+    }
+
+    /**
+     * Forgets the cached exits, so they are checked again on the next teleport.
+     */
+    public void invalidateExits() {
+        Arrays.fill(this.exits, null);
+    }
+
+    private void enableCooldown(Player player, ExpiringTracker cooldowns) {
+        cooldowns.put(player.getUniqueId(), COOLDOWN_TICKS);
     }
 
     public String getListEntry() {
+        if (!this.active) return this.niceName() + ChatColor.DARK_RED + ChatColor.ITALIC + " (not active)";
         if (this.target == null) return this.niceName() + ChatColor.DARK_RED + ChatColor.ITALIC + " (unlinked)";
-        String[] tgt = this.target.split(":");
-        switch (tgt[0]) {
-            case "portal": return this.niceName() + ChatColor.DARK_GRAY + " -> " + tgt[1];
-            case "random": return this.niceName() + ChatColor.DARK_GRAY + " -> " + ChatColor.DARK_GREEN + "(random warp)";
-            case "point": return this.niceName() + ChatColor.DARK_GRAY + " -> " + ChatColor.DARK_AQUA + "(to " + tgt[1] + ")";
-        }
-        return this.niceName() + ChatColor.RED + "[Error] " + ChatColor.RESET + "Portal target is broken.";
+        return this.niceName() + this.target.listDescription();
     }
 
     public void visit(Player player) {
@@ -164,10 +387,14 @@ public class Portal {
         player.teleport(exit.getLocation());
     }
 
-    private boolean isUnsafeBlock(Block check) {
-        if (check.getType() == Material.WATER || check.getType() == Material.STATIONARY_WATER ||
-                check.getType() == Material.STATIONARY_LAVA || check.getType() == Material.WEB || check.getType() == Material.LAVA ||
-                check.getType() == Material.CACTUS || check.getType() == Material.ENDER_PORTAL || check.getType() == Material.PORTAL)
+    static boolean isUnsafeBlock(Block check) {
+        return isUnsafeType(check.getType());
+    }
+
+    static boolean isUnsafeType(Material type) {
+        if (type == Material.WATER || type == Material.STATIONARY_WATER ||
+                type == Material.STATIONARY_LAVA || type == Material.WEB || type == Material.LAVA ||
+                type == Material.CACTUS || type == Material.ENDER_PORTAL || type == Material.PORTAL)
             return true;
         else return false;
     }
@@ -177,54 +404,89 @@ public class Portal {
      * there without suffocating, and a safe floor below.
      */
     private boolean checkFree(Block b) {
-        if (b.getType() != Material.AIR || b.getRelative(BlockFace.UP).getType() != Material.AIR) return false;
+        return findFloor(b) > 0;
+    }
+
+    /**
+     * Like checkFree, but returns how far below the block the floor is, or 0 if there's no room.
+     */
+    private int findFloor(Block b) {
+        if (b.getType() != Material.AIR || b.getRelative(BlockFace.UP).getType() != Material.AIR) return 0;
         int down = 0;
         while (down < 5) {
             b = b.getRelative(BlockFace.DOWN);
-            if (b.getType() != Material.AIR && !isUnsafeBlock(b)) return true;
             down++;
+            if (b.getType() != Material.AIR && !isUnsafeBlock(b)) return down;
         }
-        return false;
+        return 0;
     }
 
-    public void teleport(Player player) {
-        if (this.target == null) return;
-        if (this.cooldown.isAfter(Instant.now())) {
+    /**
+     * Sends the player to wherever this portal leads.
+     * @param cooldowns Players who recently used a portal. The player is added after teleporting.
+     */
+    public void teleport(Player player, ExpiringTracker cooldowns) {
+        long start = System.nanoTime();
+        boolean sent = sendPlayer(player, cooldowns, start);
+        Metrics.TELEPORT.record(start, !sent);
+    }
+
+    /**
+     * What happened when a player stepped into the portal.
+     */
+    private enum TeleportOutcome {
+        LINKED(true), RANDOM(true), POINT(true), BLOCKED(false), COOLDOWN(false), UNLINKED(false);
+
+        private final boolean sent;
+        // for the flight recorder, made once so recording teleports doesn't allocate
+        private final String label;
+
+        TeleportOutcome(boolean sent) {
+            this.sent = sent;
+            this.label = name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private boolean outcome(Player player, TeleportOutcome outcome, int tries, long start) {
+        Flight.RECORDER.teleport(this.name, player.getName(), outcome.label, tries, start);
+        return outcome.sent;
+    }
+
+    /**
+     * Does the actual work for teleport().
+     * @return Whether the player was teleported.
+     */
+    private boolean sendPlayer(Player player, ExpiringTracker cooldowns, long start) {
+        if (this.target == null) return outcome(player, TeleportOutcome.UNLINKED, 0, start);
+        if (cooldowns.isActive(player.getUniqueId())) {
             player.setVelocity(player.getLocation().getDirection().clone().normalize().multiply(-0.5).setY(0));
-            return;
+            return outcome(player, TeleportOutcome.COOLDOWN, 0, start);
         }
-        String[] tgt = this.target.split(":");
-
-        if (this.link != null && tgt[0].equals("portal")) {
-            // where is player moving? find a block in that direction from the exit
-            Vector exitDirection = player.getLocation().getDirection().clone();
-
-            // source and target portal have different orientations -> flip axes
-            if (this.isEW != this.link.isEW) { exitDirection = new Vector(exitDirection.getZ(), 0, exitDirection.getX()); }
-            // portal is flipped -> flip directions
-            if (this.link.flipped) { exitDirection.multiply(-1); }
-            if (Math.abs(exitDirection.getX()) > Math.abs(exitDirection.getZ())) exitDirection.setZ(0);
-            else exitDirection.setX(0);
-            // multiply a little extra because ugh float rounding errors
-            exitDirection.normalize().setY(0).multiply(1.1);
-
-            Block exit = this.link.location.getBlock()
-                    .getRelative((int) Math.round(exitDirection.getX()), 0, (int) Math.round(exitDirection.getZ()))
-                    .getRelative((int) Math.round(exitDirection.getX()), 0, (int) Math.round(exitDirection.getZ()));
-            if (!this.checkFree(exit)) {
-                player.setVelocity(player.getLocation().getDirection().clone().normalize().multiply(-0.7).setY(0));
+        if (isLinked()) {
+            // where is player moving? pick the exit of the linked portal in that direction
+            Vector direction = player.getLocation().getDirection();
+            int exitIndex = linkedExitIndex(direction);
+            ExitFrame exit = exitIndex < 0 ? null : this.link.getExit(exitIndex);
+            if (exit == null || !exit.free) {
+                player.setVelocity(direction.normalize().multiply(-0.7).setY(0));
                 player.sendMessage("Something is blocking the other side...");
-                this.enableCooldown();
-                return;
+                this.enableCooldown(player, cooldowns);
+                return outcome(player, TeleportOutcome.BLOCKED, 0, start);
             }
 
-            Location tport = exit.getLocation();
-            tport.setDirection(exitDirection);
-            player.teleport(tport);
-            player.setVelocity(exitDirection.multiply(0.6));
-            this.enableCooldown();
-
-        } else if (tgt[0].equals("random")) {
+            player.teleport(exit.location.clone());
+            player.setVelocity(exit.velocity.clone());
+            this.enableCooldown(player, cooldowns);
+            return outcome(player, TeleportOutcome.LINKED, 0, start);
+
+        } else if (this.target instanceof PortalTarget.RandomWarp) {
+            Location pooled = this.warpPool == null ? null : this.warpPool.take();
+            if (pooled != null) {
+                player.teleport(pooled);
+                this.enableCooldown(player, cooldowns);
+                return outcome(player, TeleportOutcome.RANDOM, 0, start);
+            }
+            // pool is empty, find a spot the slow way
             int tries = 0;
             while (tries <= Portal.randomMaxTries) {
                 tries++;
@@ -234,28 +496,19 @@ public class Portal {
                 Block check = player.getWorld().getBlockAt(x, y-1, z);
                 if (check.getType() == Material.AIR || isUnsafeBlock(check)) continue;
                 player.teleport(check.getRelative(0, 2, 0).getLocation());
-                this.enableCooldown();
-                return;
+                this.enableCooldown(player, cooldowns);
+                return outcome(player, TeleportOutcome.RANDOM, tries, start);
             }
             player.setVelocity(player.getLocation().getDirection().clone().normalize().multiply(-0.7).setY(0));
             player.sendMessage("It seems there's no good place for you right now. Try again in a few seconds.");
-            this.enableCooldown();
-
-        } else if (tgt[0].equals("point")) {
-            try {
-                List<Double> vec = Arrays.stream(tgt[1].split(",")).map(s -> Double.parseDouble(s)).collect(Collectors.toList());
-                Float pitch = Float.parseFloat(tgt[2]);
-                Float yaw = Float.parseFloat(tgt[3]);
-                Location loc = new Location(this.location.getWorld(), vec.get(0), vec.get(1), vec.get(2));
-                loc.setYaw(yaw);
-                loc.setPitch(pitch);
-                player.teleport(loc);
-                this.enableCooldown();
-
-            } catch (NumberFormatException nfex) {
-                player.sendMessage("Something about this portal feels wrong... " + ChatColor.DARK_GRAY +  "(misconfigured portal)");
-                this.enableCooldown();
-            }
+            this.enableCooldown(player, cooldowns);
+            return outcome(player, TeleportOutcome.BLOCKED, tries, start);
+
+        } else if (this.target instanceof PortalTarget.Point) {
+            player.teleport(((PortalTarget.Point) this.target).getLocation());
+            this.enableCooldown(player, cooldowns);
+            return outcome(player, TeleportOutcome.POINT, 0, start);
         }
+        return outcome(player, TeleportOutcome.UNLINKED, 0, start);
     }
 }
@@ -0,0 +1,100 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import org.bukkit.World;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Compact encoding of a portal's blocks, so portals can be rebuilt from the configuration
+ * without running the flood fill again. Since portals are flat, the blocks are stored as a
+ * bitmask over the bounding rectangle of the portal plane:
+ *
+ *   minA,minY,width,height,base64-bitmask
+ *
+ * where A is the horizontal axis of the portal (x for east/west portals, z for north/south).
+ */
+public class PortalGeometry {
+
+    public static String encode(long[] blocks, boolean isEW) {
+        if (blocks.length == 0) return null;
+        int minA = Integer.MAX_VALUE, maxA = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (long packed : blocks) {
+            int a = isEW ? Utilities.unpackX(packed) : Utilities.unpackZ(packed);
+            int y = Utilities.unpackY(packed);
+            minA = Math.min(minA, a);
+            maxA = Math.max(maxA, a);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        int width = maxA - minA + 1;
+        int height = maxY - minY + 1;
+        BitSet bits = new BitSet(width * height);
+        for (long packed : blocks) {
+            int a = isEW ? Utilities.unpackX(packed) : Utilities.unpackZ(packed);
+            bits.set((Utilities.unpackY(packed) - minY) * width + (a - minA));
+        }
+        return minA + "," + minY + "," + width + "," + height + "," + Base64.getEncoder().encodeToString(bits.toByteArray());
+    }
+
+    /**
+     * Turns an encoded geometry back into blocks.
+     * @param plane The fixed coordinate of the portal plane (z for east/west portals, x for north/south).
+     * @return The portal blocks as packed coordinates, or null if the geometry string is malformed.
+     */
+    public static long[] decode(String geometry, boolean isEW, int plane) {
+        String[] parts = geometry.split(",");
+        if (parts.length != 5) return null;
+        try {
+            int minA = Integer.parseInt(parts[0]);
+            int minY = Integer.parseInt(parts[1]);
+            int width = Integer.parseInt(parts[2]);
+            int height = Integer.parseInt(parts[3]);
+            if (width <= 0 || height <= 0) return null;
+            BitSet bits = BitSet.valueOf(Base64.getDecoder().decode(parts[4]));
+            if (bits.length() > width * height) return null;
+            long[] blocks = new long[bits.cardinality()];
+            int n = 0;
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                int a = minA + i % width;
+                int y = minY + i / width;
+                blocks[n++] = isEW ? Utilities.packBlock(a, y, plane) : Utilities.packBlock(plane, y, a);
+            }
+            Arrays.sort(blocks);
+            return blocks;
+        } catch (IllegalArgumentException iaex) {
+            return null;
+        }
+    }
+
+    /**
+     * Computes a checksum over the frame of a portal, i.e. all blocks next to a portal block
+     * (in the portal plane) that aren't part of the portal themselves. If the frame was changed
+     * while the portal wasn't loaded, the checksum won't match anymore.
+     */
+    public static long frameChecksum(World world, long[] blocks, boolean isEW) {
+        CRC32 crc = new CRC32();
+        int[][] neighbours = isEW
+                ? new int[][]{{-1, 0, 0}, {1, 0, 0}, {0, -1, 0}, {0, 1, 0}}
+                : new int[][]{{0, 0, -1}, {0, 0, 1}, {0, -1, 0}, {0, 1, 0}};
+        for (long packed : blocks) {
+            int x = Utilities.unpackX(packed);
+            int y = Utilities.unpackY(packed);
+            int z = Utilities.unpackZ(packed);
+            for (int[] n : neighbours) {
+                long frame = Utilities.packBlock(x + n[0], y + n[1], z + n[2]);
+                if (Arrays.binarySearch(blocks, frame) >= 0) continue;
+                int type = world.getBlockAt(x + n[0], y + n[1], z + n[2]).getType().name().hashCode();
+                updateLong(crc, frame);
+                updateLong(crc, type);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void updateLong(CRC32 crc, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) crc.update((int) (value >>> shift) & 0xFF);
+    }
+}
@@ -0,0 +1,89 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Spatial index over all managed portals. For every world, it maps packed chunk
+ * coordinates to the portals that have at least one block in that chunk, so
+ * block lookups only need to look at a handful of candidates instead of every portal.
+ */
+public class PortalIndex {
+    private static class WorldIndex {
+        private HashMap<Long, ArrayList<Portal>> chunks = new HashMap<>();
+        // primitive copy of the chunk keys, so misses can be answered without boxing
+        private LongHashSet occupied = new LongHashSet();
+    }
+
+    private HashMap<World, WorldIndex> worlds = new HashMap<>();
+
+    /**
+     * Packs chunk coordinates into a single long (x in the upper, z in the lower 32 bits).
+     */
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public void add(Portal p) {
+        WorldIndex wi = worlds.computeIfAbsent(p.getLocation().getWorld(), w -> new WorldIndex());
+        for (long packed : p.getPackedBlocks()) {
+            long key = chunkKey(Utilities.unpackX(packed) >> 4, Utilities.unpackZ(packed) >> 4);
+            ArrayList<Portal> inChunk = wi.chunks.computeIfAbsent(key, k -> new ArrayList<>(1));
+            if (!inChunk.contains(p)) inChunk.add(p);
+            wi.occupied.add(key);
+        }
+    }
+
+    public void remove(Portal p) {
+        WorldIndex wi = worlds.get(p.getLocation().getWorld());
+        if (wi == null) return;
+        for (long packed : p.getPackedBlocks()) {
+            long key = chunkKey(Utilities.unpackX(packed) >> 4, Utilities.unpackZ(packed) >> 4);
+            ArrayList<Portal> inChunk = wi.chunks.get(key);
+            if (inChunk == null) continue;
+            inChunk.remove(p);
+            if (inChunk.isEmpty()) wi.chunks.remove(key);
+        }
+        if (wi.chunks.isEmpty()) {
+            worlds.remove(p.getLocation().getWorld());
+            return;
+        }
+        // the primitive set doesn't support removal, but portals are rarely destroyed
+        wi.occupied.clear();
+        for (Long key : wi.chunks.keySet()) wi.occupied.add(key);
+    }
+
+    public void clear() {
+        worlds.clear();
+    }
+
+    /**
+     * Returns whether any managed portal has blocks in the given chunk. Doesn't allocate.
+     */
+    public boolean hasPortalChunk(World world, int chunkX, int chunkZ) {
+        WorldIndex wi = worlds.get(world);
+        return wi != null && wi.occupied.contains(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * Returns the portals that have blocks in the chunk containing the given block coordinates.
+     */
+    public List<Portal> candidates(World world, int x, int z) {
+        WorldIndex wi = worlds.get(world);
+        if (wi == null) return Collections.emptyList();
+        long key = chunkKey(x >> 4, z >> 4);
+        if (!wi.occupied.contains(key)) return Collections.emptyList();
+        ArrayList<Portal> inChunk = wi.chunks.get(key);
+        if (inChunk == null) return Collections.emptyList();
+        return inChunk;
+    }
+
+    public List<Portal> candidates(Block b) {
+        return candidates(b.getWorld(), b.getX(), b.getZ());
+    }
+}
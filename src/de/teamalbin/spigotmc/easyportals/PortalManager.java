@@ -1,25 +1,33 @@
 package de.teamalbin.spigotmc.easyportals;
 
+import de.teamalbin.spigotmc.easyportals.jfr.Flight;
 import de.teamalbin.spigotmc.easyportals.nms.NMSInterface;
+import de.teamalbin.spigotmc.easyportals.storage.PortalStorage;
+import de.teamalbin.spigotmc.easyportals.storage.StoredPortal;
 import org.bukkit.*;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
-import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.plugin.Plugin;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
 
 public class PortalManager {
-    // For performance reasons, only blocks within this radius around an active portal
-    // center will be protected from breaking or physics.
-    private static int PROTECTION_RADIUS = 16;
+    // how far away from the player /portal create looks for build markers
+    private static final int BUILD_SITE_DISTANCE = 5;
+    // portals per page of /portal list
+    private static final int LIST_PAGE_SIZE = 10;
+
+    // offsets of the blocks around a changed block that are checked for portal membership:
+    // the block itself, its direct neighbours, and the diagonals above and below.
+    private static final int[][] NEIGHBOURHOOD = {
+            {0, 0, 0},
+            {-1, 0, 0}, {1, 0, 0}, {0, -1, 0}, {0, 1, 0}, {0, 0, -1}, {0, 0, 1},
+            {-1, 1, 0}, {1, 1, 0}, {0, 1, -1}, {0, 1, 1},
+            {-1, -1, 0}, {1, -1, 0}, {0, -1, -1}, {0, -1, 1}
+    };
 
     public class PortalManagerError {
         private String message;
@@ -34,174 +42,303 @@ public class PortalManager {
     }
 
     private NMSInterface nms;
-    private HashMap<String, Portal> portals = new HashMap<>();
+    // sorted by name, so completion and /portal list can read name ranges straight off it
+    private TreeMap<String, Portal> portals = new TreeMap<>();
+    private PortalIndex index = new PortalIndex();
     private Material buildMarker = Material.EMERALD_BLOCK;
     private Material portalBlockType = Material.PORTAL;
-    private File configFile;
+    // for detection on the main thread; asynchronous detections get their own
+    private FrameDetector detector;
+    // for rebuilding existing portals. portal height wasn't limited before, so it isn't here either;
+    // otherwise tall portals stored without geometry would stop the plugin from loading.
+    private FrameDetector reloadDetector;
+    // how far portals may reach from their build markers, sideways and up
+    private int maxPortalSize;
+    private PortalStorage storage;
+    // players who recently used a portal
+    private ExpiringTracker cooldowns = new ExpiringTracker(Portal.COOLDOWN_TICKS);
+    private Plugin plugin;
+
+    // lazy activation: portals are only built once their chunk is loaded.
+    // maps world -> packed chunk key -> portals whose location is in that chunk.
+    private boolean lazyActivation;
+    private HashMap<World, HashMap<Long, ArrayList<Portal>>> pendingActivation = new HashMap<>();
+    private ChunkPrewarmer prewarmer;
+
+    // immutable copy of the registry for readers off the main thread; every change publishes a new one
+    private volatile Map<String, StoredPortal> snapshot = Collections.emptyMap();
+    // set while loadConfig runs, which publishes once at the end
+    private boolean loading = false;
+
+    // how many physics events were ruled out by the chunk check vs. needed a full lookup
+    private long physicsFastRejects = 0;
+    private long physicsFullChecks = 0;
 
-    public PortalManager(NMSInterface nms, File configFile) {
+    public PortalManager(Plugin plugin, NMSInterface nms, PortalStorage storage, boolean lazyActivation, int maxPortalSize) {
+        this.plugin = plugin;
         this.nms = nms;
-        this.configFile = configFile;
+        this.storage = storage;
+        this.lazyActivation = lazyActivation;
+        this.maxPortalSize = maxPortalSize;
+        this.detector = new FrameDetector(buildMarker, portalBlockType, maxPortalSize);
+        this.reloadDetector = new FrameDetector(buildMarker, portalBlockType, maxPortalSize, Integer.MAX_VALUE);
     }
 
-    private void saveConfig() throws IOException {
-        YamlConfiguration config = new YamlConfiguration();
-        for (Portal p : portals.values()) {
-            Location ploc = p.getLocation();
-            config.set("portals." + p.getName() + ".world", ploc.getWorld().getName());
-            config.set("portals." + p.getName() + ".target", p.getTarget());
-            config.set("portals." + p.getName() + ".location", ploc.toVector());
-            config.set("portals." + p.getName() + ".is_east_west", p.isEW());
-            config.set("portals." + p.getName() + ".flipped", p.isFlipped());
+    /**
+     * Hands the current state of the given portals to the storage backend, which
+     * writes them to disk later and off the main thread.
+     */
+    private void saveConfig(Portal... changed) {
+        saveConfig(null, changed);
+    }
+
+    /**
+     * Like {@link #saveConfig(Portal...)}, but also drops the removed portal (if not null) from the
+     * registry, publishing both in one step so readers never see one without the other.
+     */
+    private void saveConfig(String removed, Portal... changed) {
+        long start = System.nanoTime();
+        int saved = 0;
+        HashMap<String, StoredPortal> next = loading ? null : new HashMap<>(snapshot);
+        if (removed != null) {
+            storage.delete(removed);
+            if (next != null) next.remove(removed);
         }
-        config.save(this.configFile);
+        for (Portal p : changed) {
+            if (p == null) continue;
+            StoredPortal stored = p.toStored();
+            storage.save(stored);
+            if (next != null) next.put(stored.getName(), stored);
+            saved++;
+        }
+        if (next != null) this.snapshot = Collections.unmodifiableMap(next);
+        Metrics.SAVE_CONFIG.record(start);
+        Flight.RECORDER.configSave(saved, start);
+    }
+
+    /**
+     * Returns all portals as they're stored. The map never changes; each change to the registry
+     * publishes a new one, so this is safe to call and read from any thread without locking.
+     */
+    public Map<String, StoredPortal> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Writes any pending configuration changes to disk right away and closes the storage.
+     */
+    public void flushConfig() {
+        storage.close();
     }
 
     public void loadConfig() throws IOException, InvalidConfigurationException {
+        long start = System.nanoTime();
+        loading = true;
+        try {
+            loadPortals();
+        } finally {
+            loading = false;
+            HashMap<String, StoredPortal> next = new HashMap<>();
+            for (Portal p : portals.values()) next.put(p.getName(), p.toStored());
+            this.snapshot = Collections.unmodifiableMap(next);
+            Metrics.LOAD_CONFIG.record(start);
+            Flight.RECORDER.configLoad(portals.size(), start);
+        }
+    }
+
+    private void loadPortals() throws IOException, InvalidConfigurationException {
         boolean reloading = false;
         if (!this.portals.isEmpty()) {
             for (Portal p : portals.values()) {
                 for (Block b : p.getBlocks()) b.setType(Material.AIR);
             }
             this.portals.clear();
+            this.index.clear();
+            this.pendingActivation.clear();
             reloading = true;
         }
-        YamlConfiguration config = new YamlConfiguration();
-        config.load(configFile);
-        ConfigurationSection cportals = config.getConfigurationSection("portals");
-        if (cportals == null) return; // no portals defined
-        for (String pname : cportals.getKeys(false)) {
-            ConfigurationSection cp = cportals.getConfigurationSection(pname);
-            World w = Bukkit.getWorld(cp.getString("world"));
+        for (StoredPortal sp : storage.loadAll()) {
+            String pname = sp.getName();
+            World w = Bukkit.getWorld(sp.getWorld());
             if (w == null) throw new InvalidConfigurationException("Portal '" + pname + "' is not in a known world.");
-            Location ploc = cp.getVector("location").toLocation(w);
-            boolean isEW = cp.getBoolean("is_east_west");
-            PortalBuildSite pbs = findPortalBlocks(ploc.getBlock(), (isEW ? traverseEW : traverseNS));
-            if (pbs == null) throw new InvalidConfigurationException("Could not rebuild portal '" + pname + "' from configuration! Check the build. Location is: " + ploc.toVector());
-            Portal p = new Portal(ploc, pname, isEW, cp.getBoolean("flipped"), cp.getString("target"), null, pbs.portalBlocks);
+            Location ploc = new Location(w, sp.getX(), sp.getY(), sp.getZ());
+            PortalTarget target;
+            try {
+                target = PortalTarget.parse(sp.getTarget(), w);
+            } catch (InvalidConfigurationException icex) {
+                throw new InvalidConfigurationException("Portal '" + pname + "' has a broken target: " + icex.getMessage());
+            }
+            Portal p = new Portal(ploc, pname, sp.isEW(), sp.isFlipped(), target, null, null);
+            p.setStoredGeometry(sp.getGeometry(), sp.getFrameChecksum());
             portals.put(pname, p);
-            nms.massSetBlockType(pbs.portalBlocks, (byte)(isEW ? 0 : 2), Material.PORTAL);
+            if (lazyActivation && !w.isChunkLoaded(ploc.getBlockX() >> 4, ploc.getBlockZ() >> 4)) {
+                pendingActivation.computeIfAbsent(w, k -> new HashMap<>())
+                        .computeIfAbsent(PortalIndex.chunkKey(ploc.getBlockX() >> 4, ploc.getBlockZ() >> 4), k -> new ArrayList<>(1))
+                        .add(p);
+            } else if (!activatePortal(p)) {
+                if (!lazyActivation) throw new InvalidConfigurationException("Could not rebuild portal '" + pname + "' from configuration! Check the build. Location is: " + ploc.toVector());
+                reportBrokenPortal(p);
+            }
         }
         // after all portals are loaded, initialize the links
         for (Portal p : portals.values()) {
-            if (p.getTarget() == null) continue;
-            String[] tgt = p.getTarget().split(":");
-            if (tgt[0].equals("portal")) {
-                Portal link = portals.get(tgt[1]);
-                if (link == null) throw new InvalidConfigurationException("Portal '" + p.getName() + "' links to '" + tgt[1] + "', but that doesn't exist!");
-                p.link = link;
-            }
+            if (!(p.getTarget() instanceof PortalTarget.Linked)) continue;
+            String linkName = ((PortalTarget.Linked) p.getTarget()).getPortalName();
+            Portal link = portals.get(linkName);
+            if (link == null) throw new InvalidConfigurationException("Portal '" + p.getName() + "' links to '" + linkName + "', but that doesn't exist!");
+            p.link = link;
         }
     }
 
-    private class PortalBuildSite {
-        public boolean isColumn;
-        public boolean isEW;
-        public Location portalCenter;
-        public List<Block> portalBlocks;
+    /**
+     * Finds the blocks of a registered but inactive portal and puts the portal blocks in place.
+     * Uses the stored geometry snapshot if it still matches the world, and only falls back to
+     * the flood fill if it doesn't.
+     * @return false if the portal frame isn't intact anymore.
+     */
+    private boolean activatePortal(Portal p) {
+        Location loc = p.getLocation();
+        FrameDetector.BlockTypes types = FrameDetector.live(loc.getWorld());
+        long[] blocks = blocksFromGeometry(p, types);
+        if (blocks == null) {
+            FrameDetector.Site site = reloadDetector.findPortalBlocks(types, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), p.isEW());
+            if (site == null) return false;
+            blocks = site.blocks;
+            p.setStoredGeometry(null, 0);
+            p.activate(blocks);
+            // remember the new geometry for next time
+            saveConfig(p);
+        } else p.activate(blocks);
+        index.add(p);
+        setPortalBlocks(loc.getWorld(), p.getPackedBlocks(), p.isEW());
+        return true;
     }
 
-    private boolean isInsideBuild(Block b) {
-        return b.getType() == Material.AIR || b.getType() == buildMarker || b.getType() == portalBlockType;
+    private void setPortalBlocks(World world, long[] blocks, boolean isEW) {
+        long start = System.nanoTime();
+        nms.setBlockTypes(world, blocks, (byte)(isEW ? 0 : 2), Material.PORTAL);
+        Flight.RECORDER.blockWrite(world, blocks.length, Material.PORTAL, start);
     }
 
-    // 2d traversal functions for portal block search (since portals are 2-dimensional).
-    private BiFunction<Block, Integer, Block> traverseEW = (tb, d) -> tb.getRelative(d, 0, 0);
-    private BiFunction<Block, Integer, Block> traverseNS = (tb, d) -> tb.getRelative(0, 0, d);
+    /**
+     * Rebuilds a portal's blocks from its stored geometry, if the frame checksum still
+     * matches and all blocks inside are free. Returns null otherwise.
+     */
+    private long[] blocksFromGeometry(Portal p, FrameDetector.BlockTypes types) {
+        if (p.getGeometry() == null) return null;
+        Location loc = p.getLocation();
+        long[] blocks = PortalGeometry.decode(p.getGeometry(), p.isEW(), p.isEW() ? loc.getBlockZ() : loc.getBlockX());
+        if (blocks == null || blocks.length < 2) return null;
+        for (long packed : blocks) {
+            if (!detector.isInsideBuild(types, Utilities.unpackX(packed), Utilities.unpackY(packed), Utilities.unpackZ(packed)))
+                return null;
+        }
+        if (PortalGeometry.frameChecksum(loc.getWorld(), blocks, p.isEW()) != p.getFrameChecksum()) return null;
+        return blocks;
+    }
 
-    private PortalBuildSite findPortalBlocks(Block start, BiFunction<Block, Integer, Block> traverse) {
-        // we use an abridged scanline flood fill algorithm to detect blocks that should be part of the
-        // portal. we can simplify the algorithm since we know we start on a flat bottom and can only go up.
-        ArrayList<Block> pblocks = new ArrayList<>();
-        Stack<Block> ranges = new Stack<>();
-        ranges.push(start);
-        Location center = null;
-        while (!ranges.empty()) {
-            int moved = 0;
-            Block rb = ranges.pop();
-            // first go left...
-            while (isInsideBuild(rb) && moved < PROTECTION_RADIUS) {
-                rb = traverse.apply(rb, -1);
-                moved++;
-            }
-            if (isInsideBuild(rb)) return null;
-            boolean haveRange = false;
-            moved = 0;
-            // then go right, adding blocks to the portal
-            // mark free blocks above for next ranges
-            rb = traverse.apply(rb, 1);
-            while (isInsideBuild(rb) && moved < PROTECTION_RADIUS) {
-                // there shouldn't be air blocks below the center line unless the build markers
-                // weren't on the ground
-                if (center == null && rb.getRelative(BlockFace.DOWN).getType() == Material.AIR) break;
-                if (!haveRange && isInsideBuild(rb.getRelative(BlockFace.UP))) {
-                    haveRange = true;
-                    ranges.push(rb.getRelative(BlockFace.UP));
-                } else haveRange = false;
-                pblocks.add(rb);
-                moved++;
-                rb = traverse.apply(rb, 1);
-            }
-            if (isInsideBuild(rb)) return null;
-            if (center == null) {
-                if (pblocks.size() == 1) center = pblocks.get(0).getLocation();
-                else center = traverse.apply(rb, -Math.round(moved / 2)).getLocation();
+    private void reportBrokenPortal(Portal p) {
+        plugin.getLogger().warning("Could not rebuild portal '" + p.getName() + "'! Check the build. Location is: "
+                + p.getLocation().toVector() + ". The portal stays inactive until the next reload.");
+    }
+
+    /**
+     * Called when a chunk is loaded. Activates portals that were waiting for it (lazy activation).
+     * The actual work happens on the next tick, since finding the portal blocks may load neighbouring chunks.
+     */
+    public void chunkLoaded(Chunk chunk) {
+        HashMap<Long, ArrayList<Portal>> pendingInWorld = pendingActivation.get(chunk.getWorld());
+        if (pendingInWorld == null) return;
+        ArrayList<Portal> waiting = pendingInWorld.remove(PortalIndex.chunkKey(chunk.getX(), chunk.getZ()));
+        if (waiting == null) return;
+        if (pendingInWorld.isEmpty()) pendingActivation.remove(chunk.getWorld());
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            for (Portal p : waiting) {
+                // might have been destroyed or reloaded in the meantime
+                if (p.isActive() || portals.get(p.getName()) != p) continue;
+                if (!activatePortal(p)) reportBrokenPortal(p);
             }
-        }
-        if (pblocks.size() < 2) return null; // too small
-        PortalBuildSite pbs = new PortalBuildSite();
-        pbs.portalBlocks = pblocks;
-        pbs.portalCenter = center;
-        return pbs;
-    }
-
-    private PortalBuildSite detectBuildSiteNear(Player player, int distance) {
-        for (Block b : new Utilities.BlockScan(player.getLocation(), distance)) {
-            // maybe add column-type portals...
-            if (b.getType() == buildMarker) {
-                // might be a regular portal site
-                Material frame = b.getRelative(BlockFace.DOWN).getType();
-                if (frame == Material.AIR) continue;
-                // probe if the portal is supposed to go east/west or north/south
-                boolean isEW = false;
-                boolean isNS = false;
-                if (b.getRelative(BlockFace.EAST).getType() == buildMarker || b.getRelative(BlockFace.WEST).getType() == buildMarker) isEW = true;
-                if (b.getRelative(BlockFace.NORTH).getType() == buildMarker || b.getRelative(BlockFace.SOUTH).getType() == buildMarker) isNS = true;
-                // for portals with a 1-block center, check the sides for frame blocks
-                if (!isEW && !isNS) {
-                    if (b.getRelative(BlockFace.EAST).getType() != Material.AIR && b.getRelative(BlockFace.WEST).getType() != Material.AIR) isEW = true;
-                    if (b.getRelative(BlockFace.NORTH).getType() != Material.AIR && b.getRelative(BlockFace.SOUTH).getType() != Material.AIR) isNS = true;
+        });
+    }
+
+    /**
+     * Starts the background task that keeps the random warp pools filled.
+     * @param poolSize How many landing spots to keep per random warp portal. 0 disables pooling.
+     * @param maxAgeSeconds How long a landing spot is considered safe.
+     * @param refillInterval Ticks between refill runs.
+     */
+    public void startRandomWarpPools(int poolSize, long maxAgeSeconds, long refillInterval) {
+        if (poolSize <= 0) return;
+        Bukkit.getScheduler().runTaskTimer(plugin, () -> {
+            boolean started = false;
+            for (Portal p : portals.values()) {
+                if (!(p.getTarget() instanceof PortalTarget.RandomWarp)) {
+                    p.setWarpPool(null);
+                    continue;
                 }
-                if ((isNS && isEW) || (!isNS && !isEW)) continue; // both or neither? makes no sense
+                if (p.getWarpPool() == null) p.setWarpPool(new RandomWarpPool(p, poolSize, maxAgeSeconds * 1000));
+                // at most one chunk per run. chunks that don't exist yet are generated on the main
+                // thread, but pools only look for new spots after one of theirs was used.
+                if (!started) started = p.getWarpPool().refill(nms);
+            }
+        }, refillInterval, refillInterval);
+    }
 
-                // now that we know the direction, we can traverse the portal 2-dimensionally and find the blocks
-                PortalBuildSite pbs = findPortalBlocks(b, isEW ? traverseEW : traverseNS);
-                if (pbs == null) continue;
+    /**
+     * Starts the background task that loads portal destinations when players come close.
+     * @param radius How close players have to come to a portal. 0 disables pre-warming.
+     * @param maxChunks How many destination chunks may be kept loaded at the same time.
+     * @param holdTicks How long a destination stays loaded after the last player walked away.
+     * @param interval Ticks between checks.
+     */
+    public void startPrewarming(int radius, int maxChunks, long holdTicks, long interval) {
+        if (radius <= 0 || maxChunks <= 0) return;
+        this.prewarmer = new ChunkPrewarmer(this, nms, radius, maxChunks, holdTicks);
+        Bukkit.getScheduler().runTaskTimer(plugin, () -> prewarmer.scan(interval), interval, interval);
+    }
 
-                // found something!
-                pbs.isColumn = false;
-                pbs.isEW = isEW;
-                return pbs;
+    /**
+     * Whether a chunk has to stay loaded because a player is about to teleport there.
+     */
+    public boolean keepLoaded(Chunk chunk) {
+        return prewarmer != null && prewarmer.isHeld(chunk);
+    }
+
+    /**
+     * Adds the active portals that come within the radius of a location (on every axis) to the list.
+     */
+    public void portalsNear(Location loc, int radius, List<Portal> into) {
+        World world = loc.getWorld();
+        int x = loc.getBlockX();
+        int y = loc.getBlockY();
+        int z = loc.getBlockZ();
+        for (int cx = (x - radius) >> 4; cx <= (x + radius) >> 4; cx++) {
+            for (int cz = (z - radius) >> 4; cz <= (z + radius) >> 4; cz++) {
+                for (Portal p : this.index.candidates(world, cx << 4, cz << 4)) {
+                    if (p.boxWithin(x, y, z, radius) && !into.contains(p)) into.add(p);
+                }
             }
         }
-        return null;
     }
 
     /**
      * Given a block (most usefully a PORTAL block), returns the portal it belongs to
      * if we manage it. Returns null if otherwise (regular nether portals).
      */
-    public Portal findPortalFor(Block b, int radius) {
-        for (Portal p : this.portals.values()) {
-            if (p.getLocation().getWorld() != b.getLocation().getWorld()) continue;
-            if (p.getLocation().distance(b.getLocation()) > radius) continue;
-            if (p.getBlocks().contains(b)) return p;
-        }
-        return null;
-    }
-
     public Portal findPortalFor(Block b) {
-        return this.findPortalFor(b, PROTECTION_RADIUS);
+        boolean record = Flight.RECORDER.recordsLookups();
+        long start = record ? System.nanoTime() : 0;
+        List<Portal> candidates = this.index.candidates(b);
+        Portal found = null;
+        for (Portal p : candidates) {
+            // contains rules out blocks outside the portal's bounding box first
+            if (p.contains(b)) {
+                found = p;
+                break;
+            }
+        }
+        if (record) Flight.RECORDER.lookup(b, found == null ? null : found.getName(), candidates.size(), start);
+        return found;
     }
 
     /**
@@ -209,6 +346,13 @@ public class PortalManager {
      */
     public boolean manages(BlockPhysicsEvent bpe) {
         Block b = bpe.getBlock();
+        // this runs for every physics update on the server, so rule out chunks
+        // without portal blocks before touching block types or portals.
+        if (!index.hasPortalChunk(b.getWorld(), b.getX() >> 4, b.getZ() >> 4)) {
+            physicsFastRejects++;
+            return false;
+        }
+        physicsFullChecks++;
         if (b.getType() == this.portalBlockType || bpe.getChangedType() == this.portalBlockType)
             if (findPortalFor(b) != null) return true;
         return false;
@@ -221,25 +365,122 @@ public class PortalManager {
     }
 
     /**
-     * Checks whether any of a list of blocks is managed by a portal. For performance reasons,
-     * this only checks near a center block (usually an event location) so it can rule out far away portals quickly.
+     * Checks a whole list of blocks (e.g. of an explosion) in one pass for blocks that
+     * {@link #managesAround(Block)} would protect: portal blocks and everything next to them,
+     * so the frame stays intact too. Neighbours in the same chunk share one index lookup,
+     * and chunks without portals are skipped right away.
+     * @return The indices of the blocks in the list that are protected.
+     */
+    public BitSet managedBlocks(List<Block> blocks) {
+        BitSet managed = new BitSet(blocks.size());
+        World lastWorld = null;
+        long lastChunk = 0;
+        List<Portal> candidates = Collections.emptyList();
+        for (int i = 0; i < blocks.size(); i++) {
+            Block b = blocks.get(i);
+            World world = b.getWorld();
+            int cx = b.getX();
+            int cy = b.getY();
+            int cz = b.getZ();
+            search:
+            for (int[] offset : NEIGHBOURHOOD) {
+                int x = cx + offset[0];
+                int y = cy + offset[1];
+                int z = cz + offset[2];
+                long chunk = PortalIndex.chunkKey(x >> 4, z >> 4);
+                if (world != lastWorld || chunk != lastChunk) {
+                    candidates = this.index.candidates(world, x, z);
+                    lastWorld = world;
+                    lastChunk = chunk;
+                }
+                if (candidates.isEmpty()) continue;
+                for (Portal p : candidates) {
+                    if (!p.contains(x, y, z)) continue;
+                    if (world.getBlockAt(x, y, z).getType() == this.portalBlockType) {
+                        managed.set(i);
+                        break search;
+                    }
+                }
+            }
+        }
+        return managed;
+    }
+
+    public ExpiringTracker getCooldowns() {
+        return cooldowns;
+    }
+
+    /**
+     * Expires cooldowns. Called once per tick.
+     */
+    public void tick() {
+        cooldowns.tick();
+    }
+
+    public long getPhysicsFastRejects() {
+        return physicsFastRejects;
+    }
+
+    public long getPhysicsFullChecks() {
+        return physicsFullChecks;
+    }
+
+    /**
+     * Checks whether any block in the neighbourhood of the given block (itself, its direct neighbours
+     * and the diagonals above and below) is a portal block managed by us. Works on coordinates
+     * and doesn't create Block objects unless it actually finds a candidate.
      */
-    public boolean manages(List<Block> blocks, Block near) {
-        List<Block> check = blocks.stream().filter((b) -> b.getType() == this.portalBlockType).collect(Collectors.toList());
-        if (check.isEmpty()) return false;
-        for (Portal p : this.portals.values()) {
-            if (p.getLocation().getWorld() != near.getLocation().getWorld()) continue;
-            if (p.getLocation().distance(near.getLocation()) > PROTECTION_RADIUS) continue;
-            for (Block b : check) {
-                if (p.getLocation().getWorld() != b.getLocation().getWorld()) continue;
-                if (p.getLocation().distance(b.getLocation()) <= PROTECTION_RADIUS && p.getBlocks().contains(b)) return true;
+    public boolean managesAround(Block center) {
+        World world = center.getWorld();
+        int cx = center.getX();
+        int cy = center.getY();
+        int cz = center.getZ();
+        for (int[] offset : NEIGHBOURHOOD) {
+            int x = cx + offset[0];
+            int y = cy + offset[1];
+            int z = cz + offset[2];
+            List<Portal> candidates = this.index.candidates(world, x, z);
+            if (candidates.isEmpty()) continue;
+            for (Portal p : candidates) {
+                if (!p.contains(x, y, z)) continue;
+                if (world.getBlockAt(x, y, z).getType() == this.portalBlockType) return true;
             }
         }
         return false;
     }
 
-    public ArrayList<String> getNames() {
-        return new ArrayList<>(Arrays.asList(this.portals.keySet().toArray(new String[this.portals.keySet().size()])));
+    /**
+     * Called when a block changed. Forgets cached exits of portals whose exits are near the block.
+     */
+    public void blockChanged(Block b) {
+        World world = b.getWorld();
+        int x = b.getX();
+        int y = b.getY();
+        int z = b.getZ();
+        // exits are at most 2 blocks away from the portal center, which is always a portal block
+        for (int dx = -2; dx <= 2; dx += 4) {
+            for (int dz = -2; dz <= 2; dz += 4) {
+                for (Portal p : this.index.candidates(world, x + dx, z + dz)) {
+                    if (p.isNearExit(x, y, z)) p.invalidateExits();
+                }
+            }
+        }
+    }
+
+    public int getPortalCount() {
+        return this.portals.size();
+    }
+
+    /**
+     * Returns up to limit portal names that start with the prefix, in sorted order.
+     */
+    public List<String> namesStartingWith(String prefix, int limit) {
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : this.portals.tailMap(prefix, true).keySet()) {
+            if (names.size() >= limit || !name.startsWith(prefix)) break;
+            names.add(name);
+        }
+        return names;
     }
 
     /**
@@ -259,33 +500,93 @@ public class PortalManager {
     public PortalManagerError createPortalNear(Player player, String portalName) {
         if (player.getWorld().getEnvironment() != World.Environment.NORMAL)
             return new PortalManagerError("You can only create portals in the overworld.");
+        PortalManagerError nameError = checkNewName(portalName);
+        if (nameError != null) return nameError;
+        // snapshot the area around the player and look for the build site off the main thread.
+        // only the chunks the build markers can be in are copied, so the cost doesn't grow with the
+        // maximum portal size; portals reaching beyond them are detected again in the real world.
+        Location loc = player.getLocation();
+        World world = loc.getWorld();
+        int x = loc.getBlockX();
+        int y = loc.getBlockY();
+        int z = loc.getBlockZ();
+        FrameDetector.SnapshotRegion region = new FrameDetector.SnapshotRegion(world, x, z, BUILD_SITE_DISTANCE);
+        FrameDetector asyncDetector = new FrameDetector(buildMarker, portalBlockType, maxPortalSize);
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            FrameDetector.Result result = asyncDetector.detectNear(region, x, y, z, BUILD_SITE_DISTANCE);
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                FrameDetector.Result found = result;
+                // the portal reached beyond the snapshots, try again with the real world
+                if (found.site == null && found.incomplete) found = detector.detectNear(FrameDetector.live(world), x, y, z, BUILD_SITE_DISTANCE);
+                // blocks may have been placed since the snapshots were taken; section writes would overwrite
+                // them (and orphan tile entities), so look again in the real world if the site isn't free anymore
+                else if (found.site != null && !isStillFree(world, found.site)) found = detector.detectNear(FrameDetector.live(world), x, y, z, BUILD_SITE_DISTANCE);
+                PortalManagerError error = finishPortal(player, portalName, world, found.site);
+                if (error != null) player.sendMessage(ChatColor.RED + "Error: " + ChatColor.RESET + error.getMessage());
+            });
+        });
+        return null;
+    }
+
+    /**
+     * Whether all blocks of a site that was detected on snapshots are still free in the live world.
+     */
+    private boolean isStillFree(World world, FrameDetector.Site site) {
+        FrameDetector.BlockTypes types = FrameDetector.live(world);
+        for (long packed : site.blocks) {
+            if (!detector.isInsideBuild(types, Utilities.unpackX(packed), Utilities.unpackY(packed), Utilities.unpackZ(packed)))
+                return false;
+        }
+        return true;
+    }
+
+    private PortalManagerError checkNewName(String portalName) {
         if (this.portals.containsKey(portalName)) return new PortalManagerError("A portal with this name already exists.");
         if (portalName.contains(":") || portalName.contains(".")) return new PortalManagerError("Portal names may not include period or colon characters.");
-        PortalBuildSite buildsite = this.detectBuildSiteNear(player, 5);
-        if (buildsite == null) return new PortalManagerError("Could not detect a suitable portal site within 5 blocks. Please check the user guide.");
-        nms.massSetBlockType(buildsite.portalBlocks, (byte)(buildsite.isEW ? 0 : 2), Material.PORTAL);
-        this.portals.put(portalName, new Portal(buildsite.portalCenter, portalName, buildsite.isEW,
-                false, null, null, buildsite.portalBlocks));
+        return null;
+    }
+
+    /**
+     * Registers a portal on a detected build site. Runs on the main thread once detection is done.
+     */
+    private PortalManagerError finishPortal(Player player, String portalName, World world, FrameDetector.Site site) {
+        if (site == null) return new PortalManagerError("Could not detect a suitable portal site within " + BUILD_SITE_DISTANCE + " blocks. Please check the user guide.");
+        // someone might have been faster
+        PortalManagerError nameError = checkNewName(portalName);
+        if (nameError != null) return nameError;
+        Location center = new Location(world, site.centerX, site.centerY, site.centerZ);
+        Portal portal = new Portal(center, portalName, site.isEW, false, null, null, site.blocks);
+        setPortalBlocks(world, site.blocks, site.isEW);
+        this.portals.put(portalName, portal);
+        this.index.add(portal);
+        // don't teleport the builder right away if they're standing in the new portal
+        this.cooldowns.put(player.getUniqueId(), Portal.COOLDOWN_TICKS);
         // boom! zoosh
-        player.getWorld().playSound(buildsite.portalCenter, Sound.ENTITY_ENDERMEN_TELEPORT, 0.5f, new Random().nextFloat() * 0.4F + 0.8F);
-        try { saveConfig(); } catch (IOException ioex) { player.sendMessage(ChatColor.RED + "[!!!] Could not save portal configuration!"); }
+        world.playSound(center, Sound.ENTITY_ENDERMEN_TELEPORT, 0.5f, new Random().nextFloat() * 0.4F + 0.8F);
+        player.sendMessage("Portal " + portal.niceName() + " has been created.");
+        saveConfig(portal);
         return null;
     }
 
     public PortalManagerError linkPortals(Player player, String portal1, String portal2) {
         if (!this.portals.containsKey(portal1)) return new PortalManagerError("Portal '" + portal1 + "' does not exist.");
         Portal p1 = portals.get(portal1);
+        // linking changes previous link partners too, so remember them for saving
+        Portal previous = p1.link;
         if (portal2.equals("random")) {
             p1.makeRandom(player);
+            saveConfig(p1, previous);
         } else if (portal2.equals("here")) {
             p1.makePoint(player, player.getLocation());
+            saveConfig(p1, previous);
         } else {
             // portal-to-portal link
             if (!this.portals.containsKey(portal2)) return new PortalManagerError("Portal '" + portal2 + "' does not exist.");
             Portal p2 = portals.get(portal2);
+            Portal previous2 = p2.link;
             p1.setLink(player, p2);
+            saveConfig(p1, p2, previous, previous2);
         }
-        try { saveConfig(); } catch (IOException ioex) { player.sendMessage(ChatColor.RED + "[!!!] Could not save portal configuration!"); }
         return null;
     }
 
@@ -293,7 +594,7 @@ public class PortalManager {
         if (!this.portals.containsKey(portal)) return new PortalManagerError("Portal '" + portal + "' does not exist.");
         Portal p1 = portals.get(portal);
         p1.unlink(player);
-        try { saveConfig(); } catch (IOException ioex) { player.sendMessage(ChatColor.RED + "[!!!] Could not save portal configuration!"); }
+        saveConfig(p1);
         return null;
     }
 
@@ -302,7 +603,7 @@ public class PortalManager {
         Portal portal = portals.get(pname);
         portal.flip();
         player.sendMessage("Portal " + portal.niceName() + " -- walk-out direction flipped.");
-        try { saveConfig(); } catch (IOException ioex) { player.sendMessage(ChatColor.RED + "[!!!] Could not save portal configuration!"); }
+        saveConfig(portal);
         return null;
     }
 
@@ -316,6 +617,7 @@ public class PortalManager {
     public PortalManagerError destroyPortal(Player player, String pname) {
         if (!this.portals.containsKey(pname)) return new PortalManagerError("Portal '" + pname + "' does not exist.");
         Portal portal = portals.get(pname);
+        Portal linked = portal.link;
         if (portal.link != null) {
             portal.link.unlink(player);
             portal.unlink(player);
@@ -325,20 +627,27 @@ public class PortalManager {
         }
         player.sendMessage("Portal " + portal.niceName() + " has been destroyed.");
         this.portals.remove(pname);
-        try { saveConfig(); } catch (IOException ioex) { player.sendMessage(ChatColor.RED + "[!!!] Could not save portal configuration!"); }
+        this.index.remove(portal);
+        saveConfig(pname, linked);
         return null;
     }
 
-    public PortalManagerError list(Player player) {
-        if (portals.keySet().isEmpty()) {
-            player.sendMessage("There are no active portals.");
+    /**
+     * Shows one page of the portals whose names start with filter (or all portals if it is empty).
+     * Pages start at 1.
+     */
+    public PortalManagerError list(Player player, int page, String filter) {
+        SortedMap<String, Portal> matching = filter.isEmpty() ? portals : portals.subMap(filter, filter + Character.MAX_VALUE);
+        if (matching.isEmpty()) {
+            player.sendMessage(filter.isEmpty() ? "There are no active portals." : "There are no portals starting with '" + filter + "'.");
             return null;
         }
-        String[] names = portals.keySet().toArray(new String[portals.keySet().size()]);
-        Arrays.sort(names);
-        for (String pn : names) {
-            player.sendMessage(portals.get(pn).getListEntry());
-        }
+        int pages = (matching.size() + LIST_PAGE_SIZE - 1) / LIST_PAGE_SIZE;
+        if (page < 1 || page > pages) return new PortalManagerError("There " + (pages == 1 ? "is only 1 page." : "are only " + pages + " pages."));
+        player.sendMessage(ChatColor.GOLD + "Portals" + ChatColor.RESET + " (page " + page + " of " + pages + ", " + matching.size() + " total)");
+        Iterator<Portal> it = matching.values().iterator();
+        for (int skip = (page - 1) * LIST_PAGE_SIZE; skip > 0; skip--) it.next();
+        for (int shown = 0; shown < LIST_PAGE_SIZE && it.hasNext(); shown++) player.sendMessage(it.next().getListEntry());
         return null;
     }
 }
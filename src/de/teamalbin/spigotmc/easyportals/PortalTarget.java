@@ -0,0 +1,134 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+
+/**
+ * Where a portal leads. Targets are immutable and parsed once when they're set or loaded,
+ * so teleporting never has to look at the serialized form. The serialized forms are:
+ *
+ *   portal:<name>                      -- linked to another portal
+ *   random                             -- random warp
+ *   point:<x>, <y>, <z>:<pitch>:<yaw>  -- fixed point in the portal's world
+ */
+public abstract class PortalTarget {
+
+    /**
+     * Returns the serialized form of this target, as stored in the configuration.
+     */
+    public abstract String serialize();
+
+    /**
+     * Returns the part of the /portal list entry that describes where the portal goes.
+     */
+    public abstract String listDescription();
+
+    /**
+     * Parses a serialized target. Point targets are resolved in the given world.
+     * @return The target, or null if the portal is unlinked.
+     */
+    public static PortalTarget parse(String serialized, World world) throws InvalidConfigurationException {
+        if (serialized == null) return null;
+        String[] tgt = serialized.split(":");
+        switch (tgt[0]) {
+            case "portal":
+                if (tgt.length != 2 || tgt[1].isEmpty()) throw new InvalidConfigurationException("Malformed portal target '" + serialized + "'.");
+                return new Linked(tgt[1]);
+            case "random":
+                return RandomWarp.INSTANCE;
+            case "point":
+                if (tgt.length != 4) throw new InvalidConfigurationException("Malformed point target '" + serialized + "'.");
+                String[] vec = tgt[1].split(",");
+                if (vec.length != 3) throw new InvalidConfigurationException("Malformed point target '" + serialized + "'.");
+                try {
+                    Location loc = new Location(world, Double.parseDouble(vec[0].trim()), Double.parseDouble(vec[1].trim()),
+                            Double.parseDouble(vec[2].trim()));
+                    loc.setPitch(Float.parseFloat(tgt[2]));
+                    loc.setYaw(Float.parseFloat(tgt[3]));
+                    return new Point(loc);
+                } catch (NumberFormatException nfex) {
+                    throw new InvalidConfigurationException("Malformed point target '" + serialized + "'.");
+                }
+        }
+        throw new InvalidConfigurationException("Unknown portal target '" + serialized + "'.");
+    }
+
+    /**
+     * Target for portals that are linked to another portal.
+     */
+    public static final class Linked extends PortalTarget {
+        private final String portalName;
+
+        public Linked(String portalName) {
+            this.portalName = portalName;
+        }
+
+        public String getPortalName() {
+            return portalName;
+        }
+
+        @Override
+        public String serialize() {
+            return "portal:" + portalName;
+        }
+
+        @Override
+        public String listDescription() {
+            return ChatColor.DARK_GRAY + " -> " + portalName;
+        }
+    }
+
+    /**
+     * Target for random warp portals.
+     */
+    public static final class RandomWarp extends PortalTarget {
+        public static final RandomWarp INSTANCE = new RandomWarp();
+
+        private RandomWarp() {
+        }
+
+        @Override
+        public String serialize() {
+            return "random";
+        }
+
+        @Override
+        public String listDescription() {
+            return ChatColor.DARK_GRAY + " -> " + ChatColor.DARK_GREEN + "(random warp)";
+        }
+    }
+
+    /**
+     * Target for portals that warp to a fixed point.
+     */
+    public static final class Point extends PortalTarget {
+        private final Location location;
+
+        public Point(Location location) {
+            this.location = location.clone();
+        }
+
+        /**
+         * Returns the destination. This is a copy, so callers may modify it.
+         */
+        public Location getLocation() {
+            return location.clone();
+        }
+
+        public String describePoint() {
+            return location.getBlockX() + ", " + location.getBlockY() + ", " + location.getBlockZ();
+        }
+
+        @Override
+        public String serialize() {
+            return "point:" + describePoint() + ":" + location.getPitch() + ":" + location.getYaw();
+        }
+
+        @Override
+        public String listDescription() {
+            return ChatColor.DARK_GRAY + " -> " + ChatColor.DARK_AQUA + "(to " + describePoint() + ")";
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.teamalbin.spigotmc.easyportals;
+
+import de.teamalbin.spigotmc.easyportals.nms.NMSInterface;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a few pre-checked landing spots for a random warp portal, so players don't
+ * have to wait for chunks to load or generate when they step in. The pool is refilled
+ * in the background, one candidate at a time, using asynchronous chunk loading.
+ * Chunks that don't exist yet are still generated on the main thread, so new spots are
+ * only looked for after the portal was used, and old spots are checked again where they are.
+ */
+public class RandomWarpPool {
+    private static class Spot {
+        private final Location location;
+        private final long found;
+
+        private Spot(Location location, long found) {
+            this.location = location;
+            this.found = found;
+        }
+    }
+
+    private final Portal portal;
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final ArrayDeque<Spot> spots;
+    // spots that got too old and have to be checked again before they're used
+    private final ArrayDeque<Spot> stale;
+    // how many new spots to look for, one for each spot that was asked for or went bad
+    private int wanted = 0;
+    private boolean searching = false;
+
+    public RandomWarpPool(Portal portal, int capacity, long maxAgeMillis) {
+        this.portal = portal;
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+        this.spots = new ArrayDeque<>(capacity);
+        this.stale = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Takes a landing spot out of the pool, and asks for a new one in its place.
+     * @return The spot, or null if the pool is empty.
+     */
+    public Location take() {
+        evictStale();
+        Spot spot = spots.pollFirst();
+        if (spots.size() + stale.size() + wanted < capacity) wanted++;
+        return spot == null ? null : spot.location;
+    }
+
+    private void evictStale() {
+        long now = System.currentTimeMillis();
+        // oldest spots are at the front
+        while (!spots.isEmpty() && now - spots.peekFirst().found > maxAgeMillis) stale.addLast(spots.pollFirst());
+    }
+
+    /**
+     * Checks one stale spot again, or looks for one new spot if any were taken. Does nothing
+     * if a search is running already. Must be called on the main thread.
+     * @return Whether a search was started.
+     */
+    public boolean refill(NMSInterface nms) {
+        evictStale();
+        if (searching) return false;
+        World world = portal.getLocation().getWorld();
+        if (!stale.isEmpty()) {
+            // the chunk of an old spot exists already, so this only loads it
+            Location old = stale.peekFirst().location;
+            int x = old.getBlockX();
+            int z = old.getBlockZ();
+            searching = true;
+            nms.loadChunkAsync(world, x >> 4, z >> 4, () -> {
+                searching = false;
+                stale.pollFirst();
+                if (!(portal.getTarget() instanceof PortalTarget.RandomWarp)) return;
+                Location checked = check(world, x, z);
+                if (checked != null) spots.addLast(new Spot(checked, System.currentTimeMillis()));
+                else wanted++; // look for a new one in its place, or the pool never fills up again
+            });
+            return true;
+        }
+        if (wanted <= 0 || spots.size() >= capacity) return false;
+        int range = Portal.getRandomRange();
+        int x = portal.getLocation().getBlockX() + ThreadLocalRandom.current().nextInt(-range, range);
+        int z = portal.getLocation().getBlockZ() + ThreadLocalRandom.current().nextInt(-range, range);
+        searching = true;
+        nms.loadChunkAsync(world, x >> 4, z >> 4, () -> {
+            searching = false;
+            // the portal may have been relinked while we were waiting
+            if (!(portal.getTarget() instanceof PortalTarget.RandomWarp)) return;
+            Location found = check(world, x, z);
+            if (found == null) return; // try again next time
+            wanted--;
+            spots.addLast(new Spot(found, System.currentTimeMillis()));
+        });
+        return true;
+    }
+
+    // returns where to land at x, z, or null if that's not safe
+    private static Location check(World world, int x, int z) {
+        int y = world.getHighestBlockYAt(x, z);
+        Block check = world.getBlockAt(x, y - 1, z);
+        if (check.getType() == Material.AIR || Portal.isUnsafeBlock(check)) return null;
+        return check.getRelative(0, 2, 0).getLocation();
+    }
+}
@@ -2,53 +2,66 @@ package de.teamalbin.spigotmc.easyportals;
 
 import org.bukkit.Location;
 import org.bukkit.Rotation;
-import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.util.Vector;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Utilities {
 
+    // scan orders are the same for every scan with the same distance, so we only sort them once
+    private static final ConcurrentHashMap<Integer, int[]> scanOrders = new ConcurrentHashMap<>();
+
     /**
-     * Utility class that implements a block scan. It returns all blocks within
-     * some distance around a location, in a pattern that's optimized to find
-     * things near the center block and nearly on the same y level first.
+     * Returns the order in which to scan the blocks within some distance around a location, as a
+     * flat array of x, y, z offsets. Nearest blocks come first. Blocks at the same distance are
+     * ordered by y layer (same layer, then one below, one above, ...), and within a layer
+     * they spiral around the center. The array is shared, don't modify it.
      */
-    public static class BlockScan implements Iterator<Block>, Iterable<Block> {
-        private Location around;
-        private int distance;
-        private int rx;
-        private int ry;
-        private int rz;
+    public static int[] scanOrder(int distance) {
+        return scanOrders.computeIfAbsent(distance, Utilities::computeScanOrder);
+    }
 
-        public BlockScan(Location around, int distance) {
-            this.around = around;
-            this.distance = distance;
-            this.rx = -distance;
-            this.ry = -distance;
-            this.rz = -distance;
+    private static int[] computeScanOrder(int distance) {
+        ArrayList<int[]> offsets = new ArrayList<>();
+        for (int y = -distance; y <= distance; y++) {
+            for (int z = -distance; z <= distance; z++) {
+                for (int x = -distance; x <= distance; x++) offsets.add(new int[]{x, y, z});
+            }
         }
-
-        @Override
-        public boolean hasNext() {
-            return this.ry <= this.distance;
+        offsets.sort(Comparator
+                .comparingInt((int[] o) -> o[0] * o[0] + o[1] * o[1] + o[2] * o[2])
+                .thenComparingInt(o -> Math.abs(o[1]) * 2 + (o[1] > 0 ? 1 : 0))
+                .thenComparingDouble(o -> Math.atan2(o[2], o[0])));
+        int[] order = new int[offsets.size() * 3];
+        for (int i = 0; i < offsets.size(); i++) {
+            order[i * 3] = offsets.get(i)[0];
+            order[i * 3 + 1] = offsets.get(i)[1];
+            order[i * 3 + 2] = offsets.get(i)[2];
         }
+        return order;
+    }
 
-        @Override
-        public Block next() {
-            // TODO: optimize search (spiral search on x and z axes, alternating y layers)
-            Block b = around.getBlock().getRelative(this.rx, this.ry, this.rz);
-            this.rx++;
-            if (this.rx > this.distance) { this.rx = - this.distance; this.rz++; }
-            if (this.rz > this.distance) { this.rz = - this.distance; this.ry++; }
-            return b;
-        }
+    /**
+     * Packs block coordinates into a single long, using the same layout as Minecraft
+     * itself (26 bits x, 26 bits z, 12 bits y).
+     */
+    public static long packBlock(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
 
-        @Override
-        public Iterator<Block> iterator() {
-            return this;
-        }
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
     }
 
     /**
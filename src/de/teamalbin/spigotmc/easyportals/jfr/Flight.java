@@ -0,0 +1,21 @@
+package de.teamalbin.spigotmc.easyportals.jfr;
+
+/**
+ * Holds the recorder for Java Flight Recorder events. On JVMs without JFR this is a recorder that
+ * does nothing, and the event classes are never loaded.
+ */
+public final class Flight {
+    public static final Recorder RECORDER = create();
+
+    private Flight() {
+    }
+
+    private static Recorder create() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("de.teamalbin.spigotmc.easyportals.jfr.JfrRecorder").newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return new Recorder() {};
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package de.teamalbin.spigotmc.easyportals.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Records portal operations as JFR events. Only loaded by Flight if the JVM has JFR.
+ * Events are created after the fact, so their own duration is zero; how long the operation
+ * took is in their "Time Taken" field.
+ */
+class JfrRecorder implements Recorder {
+
+    @Name("easyportals.Lookup")
+    @Label("Portal Lookup")
+    @Category("EasyPortals")
+    static class LookupEvent extends Event {
+        @Label("World") String world;
+        @Label("X") int x;
+        @Label("Y") int y;
+        @Label("Z") int z;
+        @Label("Portal") String portal;
+        @Label("Candidates") int candidates;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    @Name("easyportals.FloodFill")
+    @Label("Portal Flood Fill")
+    @Category("EasyPortals")
+    static class FloodFillEvent extends Event {
+        @Label("X") int x;
+        @Label("Y") int y;
+        @Label("Z") int z;
+        @Label("East/West") boolean isEW;
+        @Label("Block Count") int blocks;
+        @Label("Found") boolean found;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    @Name("easyportals.SiteSearch")
+    @Label("Portal Site Search")
+    @Category("EasyPortals")
+    static class SiteSearchEvent extends Event {
+        @Label("X") int x;
+        @Label("Y") int y;
+        @Label("Z") int z;
+        @Label("Tries") int tries;
+        @Label("Found") boolean found;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    @Name("easyportals.BlockWrite")
+    @Label("Portal Block Write")
+    @Category("EasyPortals")
+    static class BlockWriteEvent extends Event {
+        @Label("World") String world;
+        @Label("Block Count") int blocks;
+        @Label("Block Type") String type;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    @Name("easyportals.ConfigSave")
+    @Label("Portal Config Save")
+    @Category("EasyPortals")
+    static class ConfigSaveEvent extends Event {
+        @Label("Portals") int portals;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    @Name("easyportals.ConfigLoad")
+    @Label("Portal Config Load")
+    @Category("EasyPortals")
+    static class ConfigLoadEvent extends Event {
+        @Label("Portals") int portals;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    @Name("easyportals.Teleport")
+    @Label("Portal Teleport")
+    @Category("EasyPortals")
+    static class TeleportEvent extends Event {
+        @Label("Portal") String portal;
+        @Label("Player") String player;
+        @Label("Outcome") String outcome;
+        @Label("Tries") int tries;
+        @Label("Time Taken") @Timespan(Timespan.NANOSECONDS) long took;
+    }
+
+    private static final EventType LOOKUP = EventType.getEventType(LookupEvent.class);
+
+    @Override
+    public boolean recordsLookups() {
+        return LOOKUP.isEnabled();
+    }
+
+    @Override
+    public void lookup(Block block, String portal, int candidates, long startNanos) {
+        LookupEvent event = new LookupEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.world = block.getWorld().getName();
+        event.x = block.getX();
+        event.y = block.getY();
+        event.z = block.getZ();
+        event.portal = portal;
+        event.candidates = candidates;
+        event.commit();
+    }
+
+    @Override
+    public void floodFill(int x, int y, int z, boolean isEW, int blocks, boolean found, long startNanos) {
+        FloodFillEvent event = new FloodFillEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.x = x;
+        event.y = y;
+        event.z = z;
+        event.isEW = isEW;
+        event.blocks = blocks;
+        event.found = found;
+        event.commit();
+    }
+
+    @Override
+    public void siteSearch(int x, int y, int z, int tries, boolean found, long startNanos) {
+        SiteSearchEvent event = new SiteSearchEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.x = x;
+        event.y = y;
+        event.z = z;
+        event.tries = tries;
+        event.found = found;
+        event.commit();
+    }
+
+    @Override
+    public void blockWrite(World world, int blocks, Material type, long startNanos) {
+        BlockWriteEvent event = new BlockWriteEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.world = world.getName();
+        event.blocks = blocks;
+        event.type = type.name();
+        event.commit();
+    }
+
+    @Override
+    public void configSave(int portals, long startNanos) {
+        ConfigSaveEvent event = new ConfigSaveEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.portals = portals;
+        event.commit();
+    }
+
+    @Override
+    public void configLoad(int portals, long startNanos) {
+        ConfigLoadEvent event = new ConfigLoadEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.portals = portals;
+        event.commit();
+    }
+
+    @Override
+    public void teleport(String portal, String player, String outcome, int tries, long startNanos) {
+        TeleportEvent event = new TeleportEvent();
+        if (!event.isEnabled()) return;
+        event.took = System.nanoTime() - startNanos;
+        event.portal = portal;
+        event.player = player;
+        event.outcome = outcome;
+        event.tries = tries;
+        event.commit();
+    }
+}
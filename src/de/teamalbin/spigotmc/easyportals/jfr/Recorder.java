@@ -0,0 +1,42 @@
+package de.teamalbin.spigotmc.easyportals.jfr;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Receives portal operations for profiling. The default methods do nothing; see Flight for
+ * the instance in use. Callers pass what they have at hand, and the recorder only looks at it
+ * when it actually records something. Start times are from System.nanoTime().
+ */
+public interface Recorder {
+
+    /**
+     * Whether lookup events are being recorded. Lookups run for every physics update near a portal,
+     * so callers check this before taking the time, and skip the call to lookup if it's false.
+     */
+    default boolean recordsLookups() {
+        return false;
+    }
+
+    default void lookup(Block block, String portal, int candidates, long startNanos) {
+    }
+
+    default void floodFill(int x, int y, int z, boolean isEW, int blocks, boolean found, long startNanos) {
+    }
+
+    default void siteSearch(int x, int y, int z, int tries, boolean found, long startNanos) {
+    }
+
+    default void blockWrite(World world, int blocks, Material type, long startNanos) {
+    }
+
+    default void configSave(int portals, long startNanos) {
+    }
+
+    default void configLoad(int portals, long startNanos) {
+    }
+
+    default void teleport(String portal, String player, String outcome, int tries, long startNanos) {
+    }
+}
@@ -1,16 +1,22 @@
 package de.teamalbin.spigotmc.easyportals.nms;
 
 import org.bukkit.Material;
-import org.bukkit.block.Block;
-
-import java.util.List;
+import org.bukkit.World;
 
 public interface NMSInterface {
     /**
-     * Sets many blocks' types at once, bypassing spigot/bukkit.
-     * @param blocks List of blocks to change
+     * Sets many blocks' types at once, bypassing spigot/bukkit. Blocks are written chunk by chunk,
+     * without physics, and players get one update per chunk instead of one per block.
+     * @param world The world the blocks are in
+     * @param blocks Packed block coordinates (see Utilities.packBlock)
      * @param data Block data (most often: 0-3 for rotation).
      * @param blockType The new block type
      */
-    void massSetBlockType(List<Block> blocks, byte data, Material blockType);
+    void setBlockTypes(World world, long[] blocks, byte data, Material blockType);
+
+    /**
+     * Loads a chunk without blocking the main thread if possible, and runs the callback
+     * on the main thread once it's loaded.
+     */
+    void loadChunkAsync(World world, int chunkX, int chunkZ, Runnable callback);
 }
@@ -1,25 +1,89 @@
 package de.teamalbin.spigotmc.easyportals.nms;
 
+import de.teamalbin.spigotmc.easyportals.Utilities;
 import net.minecraft.server.v1_12_R1.*;
 import org.bukkit.Material;
-import org.bukkit.block.Block;
 import org.bukkit.craftbukkit.v1_12_R1.CraftWorld;
 
-import java.util.List;
+import java.util.Arrays;
 
 public class NMSInterface_1_12 implements NMSInterface {
 
     @Override
-    public void massSetBlockType(List<Block> blocks, byte data, Material blockType) {
-        if (blocks.isEmpty()) return;
-        World world = ((CraftWorld) blocks.get(0).getWorld()).getHandle();
-        @SuppressWarnings("deprecation")
+    @SuppressWarnings("deprecation")
+    public void setBlockTypes(org.bukkit.World bukkitWorld, long[] blocks, byte data, Material blockType) {
+        if (blocks.length == 0) return;
+        WorldServer world = ((CraftWorld) bukkitWorld).getHandle();
         IBlockData blockData = net.minecraft.server.v1_12_R1.Block.getByCombinedId(blockType.getId() + (data << 12));
-        for (Block b : blocks) {
-            Chunk chunk = world.getChunkAt(b.getX() >> 4, b.getZ() >> 4);
-            BlockPosition pos = new BlockPosition(b.getX(), b.getY(), b.getZ());
-            world.setTypeAndData(pos, blockData, 2);
-            chunk.a(pos, blockData);
+        boolean occluding = blockType.isOccluding();
+        // sort by chunk, so each chunk is fetched and sent once
+        long[] sorted = new long[blocks.length];
+        int n = 0;
+        for (long packed : blocks) {
+            int y = Utilities.unpackY(packed);
+            if (y < 0 || y > 255) continue;
+            sorted[n++] = byChunk(Utilities.unpackX(packed), y, Utilities.unpackZ(packed));
         }
+        Arrays.sort(sorted, 0, n);
+        short[] changes = new short[n];
+        int start = 0;
+        while (start < n) {
+            long chunkBits = sorted[start] & ~0xFFFFL;
+            int cx = (int) (sorted[start] >> 40);
+            int cz = (int) (sorted[start] << 24 >> 40);
+            Chunk chunk = world.getChunkAt(cx, cz);
+            ChunkSection[] sections = chunk.getSections();
+            int count = 0;
+            boolean heightsChanged = false;
+            int end = start;
+            for (; end < n && (sorted[end] & ~0xFFFFL) == chunkBits; end++) {
+                short local = (short) sorted[end];
+                int x = local >> 12 & 15;
+                int y = local & 255;
+                int z = local >> 8 & 15;
+                ChunkSection section = sections[y >> 4];
+                if (section == null) {
+                    // nothing in this section yet
+                    if (blockType == Material.AIR) continue;
+                    section = new ChunkSection(y >> 4 << 4, world.worldProvider.m());
+                    sections[y >> 4] = section;
+                }
+                IBlockData old = section.getType(x, y & 15, z);
+                if (old == blockData) continue; // already there, nothing to do
+                section.setType(x, y & 15, z, blockData);
+                Material oldType = Material.getMaterial(net.minecraft.server.v1_12_R1.Block.getCombinedId(old) & 4095);
+                if (occluding || (oldType != null && oldType.isOccluding())) heightsChanged = true;
+                changes[count++] = local;
+            }
+            if (count > 0) {
+                // sky light depends on the height map, which only changes if an opaque block came or went
+                if (heightsChanged) chunk.initLighting();
+                for (int i = 0; i < count; i++) {
+                    world.w(new BlockPosition((cx << 4) + (changes[i] >> 12 & 15), changes[i] & 255, (cz << 4) + (changes[i] >> 8 & 15)));
+                }
+                chunk.markDirty();
+                PlayerChunk watched = world.getPlayerChunkMap().getChunk(cx, cz);
+                if (watched != null) watched.a(new PacketPlayOutMultiBlockChange(count, Arrays.copyOf(changes, count), chunk));
+            }
+            start = end;
+        }
+    }
+
+    // packs a block as chunk x (24 bits), chunk z (24 bits) and its position inside the chunk
+    // in the format of the multi block change packet: x << 12 | z << 8 | y
+    private static long byChunk(int x, int y, int z) {
+        return ((long) ((x >> 4) & 0xFFFFFF) << 40) | ((long) ((z >> 4) & 0xFFFFFF) << 16)
+                | ((x & 15) << 12 | (z & 15) << 8 | y);
+    }
+
+    @Override
+    public void loadChunkAsync(org.bukkit.World world, int chunkX, int chunkZ, Runnable callback) {
+        if (world.isChunkLoaded(chunkX, chunkZ)) {
+            callback.run();
+            return;
+        }
+        // loads from disk on the chunk IO thread and calls back on the main thread.
+        // chunks that don't exist yet are generated synchronously.
+        ((CraftWorld) world).getHandle().getChunkProviderServer().getChunkAt(chunkX, chunkZ, callback);
     }
 }
@@ -0,0 +1,33 @@
+package de.teamalbin.spigotmc.easyportals.nms;
+
+import de.teamalbin.spigotmc.easyportals.Utilities;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+
+/**
+ * Fallback for versions without a compiled NMS adapter. Only uses the bukkit API, so it's slower
+ * (every block is sent on its own) and chunks are loaded synchronously. Sets types by material and
+ * the data through the block state, so it doesn't depend on the block id methods.
+ */
+public class NMSInterface_Bukkit implements NMSInterface {
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBlockTypes(World world, long[] blocks, byte data, Material blockType) {
+        for (long packed : blocks) {
+            Block block = world.getBlockAt(Utilities.unpackX(packed), Utilities.unpackY(packed), Utilities.unpackZ(packed));
+            block.setType(blockType, false);
+            BlockState state = block.getState();
+            state.setRawData(data);
+            state.update(true, false);
+        }
+    }
+
+    @Override
+    public void loadChunkAsync(World world, int chunkX, int chunkZ, Runnable callback) {
+        if (!world.isChunkLoaded(chunkX, chunkZ)) world.loadChunk(chunkX, chunkZ);
+        callback.run();
+    }
+}
@@ -0,0 +1,94 @@
+package de.teamalbin.spigotmc.easyportals.storage;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Write-behind persistence for a config file. Save requests within a short window are
+ * coalesced into one write; the contents are snapshotted on the main thread and written
+ * off the main thread to a temp file, which then replaces the real file atomically.
+ */
+public class ConfigPersister {
+    // how long to wait for more changes before writing, in ticks
+    private static final long SAVE_DELAY = 20;
+
+    private Plugin plugin;
+    private File file;
+    private Supplier<String> snapshot;
+
+    // main thread only. nextSequence - 1 is the last snapshot handed off for writing.
+    private boolean scheduled = false;
+    private long nextSequence = 0;
+
+    // guarded by writeLock
+    private final Object writeLock = new Object();
+    private long writtenSequence = -1;
+
+    /**
+     * @param snapshot Serializes the current state. Always called on the main thread.
+     */
+    public ConfigPersister(Plugin plugin, File file, Supplier<String> snapshot) {
+        this.plugin = plugin;
+        this.file = file;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Schedules a save. Cheap to call many times in a row; only one write will happen.
+     */
+    public void requestSave() {
+        if (scheduled) return;
+        scheduled = true;
+        Bukkit.getScheduler().runTaskLater(plugin, () -> {
+            if (!scheduled) return; // flushed in the meantime
+            scheduled = false;
+            final String data = snapshot.get();
+            final long sequence = nextSequence++;
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> write(data, sequence));
+        }, SAVE_DELAY);
+    }
+
+    /**
+     * Writes the current state synchronously if a save is pending, e.g. when the plugin is disabled.
+     * That includes snapshots already handed to an asynchronous write that hasn't finished, since
+     * bukkit cancels pending asynchronous tasks when the plugin is disabled.
+     */
+    public void flush() {
+        long lastHandedOff = nextSequence - 1;
+        boolean unwritten;
+        synchronized (writeLock) {
+            unwritten = writtenSequence < lastHandedOff;
+        }
+        if (!scheduled && !unwritten) return;
+        scheduled = false;
+        write(snapshot.get(), nextSequence++);
+    }
+
+    private void write(String data, long sequence) {
+        synchronized (writeLock) {
+            // an older snapshot may still be queued after a flush; never let it overwrite newer data
+            if (sequence <= writtenSequence) return;
+            File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try {
+                Files.write(tmp.toPath(), data.getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amex) {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                writtenSequence = sequence;
+            } catch (IOException ioex) {
+                plugin.getLogger().log(Level.SEVERE, "Could not save " + file.getName() + "!", ioex);
+            }
+        }
+    }
+}
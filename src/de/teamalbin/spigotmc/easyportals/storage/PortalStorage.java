@@ -0,0 +1,39 @@
+package de.teamalbin.spigotmc.easyportals.storage;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+
+import java.io.IOException;
+import java.util.List;
+
+public interface PortalStorage {
+    /**
+     * Reads all stored portals. Called on the main thread at startup and on reload.
+     */
+    List<StoredPortal> loadAll() throws IOException, InvalidConfigurationException;
+
+    /**
+     * Records a new or changed portal. Called on the main thread; implementations
+     * should do the actual writing elsewhere.
+     */
+    void save(StoredPortal portal);
+
+    /**
+     * Removes a portal from storage.
+     */
+    void delete(String name);
+
+    /**
+     * Writes everything that is still pending and releases resources. Called when the plugin is disabled.
+     */
+    void close();
+
+    /**
+     * Copies all portals from one storage to another, e.g. when switching backends.
+     * @return The number of migrated portals.
+     */
+    static int migrate(PortalStorage from, PortalStorage to) throws IOException, InvalidConfigurationException {
+        List<StoredPortal> stored = from.loadAll();
+        for (StoredPortal sp : stored) to.save(sp);
+        return stored.size();
+    }
+}
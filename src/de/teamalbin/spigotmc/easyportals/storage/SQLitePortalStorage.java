@@ -0,0 +1,137 @@
+package de.teamalbin.spigotmc.easyportals.storage;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Stores portals as rows in an embedded SQLite database (the driver ships with Spigot).
+ * Changes only touch the affected portal's row. All database access goes through a
+ * single worker thread, so writes stay in order and never block the main thread.
+ */
+public class SQLitePortalStorage implements PortalStorage {
+    private Plugin plugin;
+    private Connection connection;
+    private ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "EasyPortals-SQLite");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SQLitePortalStorage(Plugin plugin, File file) throws IOException {
+        this.plugin = plugin;
+        try {
+            Class.forName("org.sqlite.JDBC");
+            this.connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement st = connection.createStatement()) {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS portals (" +
+                        "name TEXT PRIMARY KEY, world TEXT NOT NULL, x REAL NOT NULL, y REAL NOT NULL, z REAL NOT NULL, " +
+                        "is_east_west INTEGER NOT NULL, flipped INTEGER NOT NULL, target TEXT, " +
+                        "geometry TEXT, frame_checksum INTEGER NOT NULL DEFAULT 0)");
+                // databases created before geometry snapshots existed
+                try (ResultSet rs = st.executeQuery("SELECT * FROM portals LIMIT 0")) {
+                    boolean hasGeometry = false;
+                    for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                        if (rs.getMetaData().getColumnName(i).equalsIgnoreCase("geometry")) hasGeometry = true;
+                    }
+                    if (!hasGeometry) {
+                        st.executeUpdate("ALTER TABLE portals ADD COLUMN geometry TEXT");
+                        st.executeUpdate("ALTER TABLE portals ADD COLUMN frame_checksum INTEGER NOT NULL DEFAULT 0");
+                    }
+                }
+            }
+        } catch (ClassNotFoundException | SQLException ex) {
+            throw new IOException("Could not open portal database " + file.getName() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    public boolean isEmpty() throws IOException {
+        try {
+            return worker.submit(() -> {
+                try (Statement st = connection.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM portals")) {
+                    return !rs.next() || rs.getInt(1) == 0;
+                }
+            }).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IOException("Could not read portal database: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public List<StoredPortal> loadAll() throws IOException, InvalidConfigurationException {
+        try {
+            return worker.submit(() -> {
+                ArrayList<StoredPortal> stored = new ArrayList<>();
+                try (Statement st = connection.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT name, world, x, y, z, is_east_west, flipped, target, geometry, frame_checksum FROM portals")) {
+                    while (rs.next()) {
+                        stored.add(new StoredPortal(rs.getString(1), rs.getString(2), rs.getDouble(3), rs.getDouble(4),
+                                rs.getDouble(5), rs.getInt(6) != 0, rs.getInt(7) != 0, rs.getString(8),
+                                rs.getString(9), rs.getLong(10)));
+                    }
+                }
+                return stored;
+            }).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IOException("Could not read portal database: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void save(StoredPortal portal) {
+        worker.execute(() -> {
+            try (PreparedStatement ps = connection.prepareStatement("INSERT OR REPLACE INTO portals " +
+                    "(name, world, x, y, z, is_east_west, flipped, target, geometry, frame_checksum) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                ps.setString(1, portal.getName());
+                ps.setString(2, portal.getWorld());
+                ps.setDouble(3, portal.getX());
+                ps.setDouble(4, portal.getY());
+                ps.setDouble(5, portal.getZ());
+                ps.setInt(6, portal.isEW() ? 1 : 0);
+                ps.setInt(7, portal.isFlipped() ? 1 : 0);
+                ps.setString(8, portal.getTarget());
+                ps.setString(9, portal.getGeometry());
+                ps.setLong(10, portal.getFrameChecksum());
+                ps.executeUpdate();
+            } catch (SQLException sqlex) {
+                plugin.getLogger().log(Level.SEVERE, "Could not save portal '" + portal.getName() + "'!", sqlex);
+            }
+        });
+    }
+
+    @Override
+    public void delete(String name) {
+        worker.execute(() -> {
+            try (PreparedStatement ps = connection.prepareStatement("DELETE FROM portals WHERE name = ?")) {
+                ps.setString(1, name);
+                ps.executeUpdate();
+            } catch (SQLException sqlex) {
+                plugin.getLogger().log(Level.SEVERE, "Could not delete portal '" + name + "'!", sqlex);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        worker.shutdown();
+        try {
+            if (!worker.awaitTermination(10, TimeUnit.SECONDS))
+                plugin.getLogger().severe("Timed out waiting for portal database writes to finish.");
+            connection.close();
+        } catch (InterruptedException | SQLException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Could not close portal database!", ex);
+        }
+    }
+}
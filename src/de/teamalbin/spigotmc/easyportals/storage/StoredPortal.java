@@ -0,0 +1,78 @@
+package de.teamalbin.spigotmc.easyportals.storage;
+
+/**
+ * Immutable record of everything about a portal that gets persisted. Snapshots like this
+ * are taken on the main thread so storage backends can write them from other threads.
+ */
+public final class StoredPortal {
+    private final String name;
+    private final String world;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final boolean isEW;
+    private final boolean flipped;
+    private final String target;
+    private final String geometry;
+    private final long frameChecksum;
+
+    public StoredPortal(String name, String world, double x, double y, double z, boolean isEW, boolean flipped, String target,
+                        String geometry, long frameChecksum) {
+        this.name = name;
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.isEW = isEW;
+        this.flipped = flipped;
+        this.target = target;
+        this.geometry = geometry;
+        this.frameChecksum = frameChecksum;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public boolean isEW() {
+        return isEW;
+    }
+
+    public boolean isFlipped() {
+        return flipped;
+    }
+
+    /**
+     * @return The serialized portal target, or null if the portal is unlinked.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The encoded portal blocks (see PortalGeometry), or null if not known yet.
+     */
+    public String getGeometry() {
+        return geometry;
+    }
+
+    public long getFrameChecksum() {
+        return frameChecksum;
+    }
+}
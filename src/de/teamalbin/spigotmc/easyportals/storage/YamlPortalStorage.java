@@ -0,0 +1,79 @@
+package de.teamalbin.spigotmc.easyportals.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.util.Vector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Default storage: all portals in a single portals.yml. Every change rewrites the
+ * whole file, but writes are coalesced and happen off the main thread.
+ */
+public class YamlPortalStorage implements PortalStorage {
+    private File file;
+    private ConfigPersister persister;
+    private LinkedHashMap<String, StoredPortal> portals = new LinkedHashMap<>();
+
+    public YamlPortalStorage(Plugin plugin, File file) {
+        this.file = file;
+        this.persister = new ConfigPersister(plugin, file, this::serialize);
+    }
+
+    @Override
+    public List<StoredPortal> loadAll() throws IOException, InvalidConfigurationException {
+        portals.clear();
+        YamlConfiguration config = new YamlConfiguration();
+        config.load(file);
+        ConfigurationSection cportals = config.getConfigurationSection("portals");
+        if (cportals == null) return new ArrayList<>(); // no portals defined
+        for (String pname : cportals.getKeys(false)) {
+            ConfigurationSection cp = cportals.getConfigurationSection(pname);
+            Vector loc = cp.getVector("location");
+            if (cp.getString("world") == null || loc == null)
+                throw new InvalidConfigurationException("Portal '" + pname + "' is missing its world or location.");
+            portals.put(pname, new StoredPortal(pname, cp.getString("world"), loc.getX(), loc.getY(), loc.getZ(),
+                    cp.getBoolean("is_east_west"), cp.getBoolean("flipped"), cp.getString("target"),
+                    cp.getString("geometry"), cp.getLong("frame_checksum")));
+        }
+        return new ArrayList<>(portals.values());
+    }
+
+    @Override
+    public void save(StoredPortal portal) {
+        portals.put(portal.getName(), portal);
+        persister.requestSave();
+    }
+
+    @Override
+    public void delete(String name) {
+        if (portals.remove(name) != null) persister.requestSave();
+    }
+
+    @Override
+    public void close() {
+        persister.flush();
+    }
+
+    private String serialize() {
+        YamlConfiguration config = new YamlConfiguration();
+        for (StoredPortal p : portals.values()) {
+            config.set("portals." + p.getName() + ".world", p.getWorld());
+            config.set("portals." + p.getName() + ".target", p.getTarget());
+            config.set("portals." + p.getName() + ".location", new Vector(p.getX(), p.getY(), p.getZ()));
+            config.set("portals." + p.getName() + ".is_east_west", p.isEW());
+            config.set("portals." + p.getName() + ".flipped", p.isFlipped());
+            if (p.getGeometry() != null) {
+                config.set("portals." + p.getName() + ".geometry", p.getGeometry());
+                config.set("portals." + p.getName() + ".frame_checksum", p.getFrameChecksum());
+            }
+        }
+        return config.saveToString();
+    }
+}